@@ -0,0 +1,263 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A hard disk with a single head, holding its contents in a file on the host.
+ * The disk is divided into tracks, and each track into sectors of
+ * <tt>sectorSize</tt> bytes; sectors are numbered track by track.
+ * <tt>nachos.conf</tt> sets the number of tracks, <tt>Disk.numTracks</tt>, the
+ * number of sectors per track, <tt>Disk.sectorsPerTrack</tt>, and the name of
+ * the file in the test directory, <tt>Disk.file</tt>.
+ *
+ * <p>
+ * The disk handles one request at a time, for a run of consecutive sectors.
+ * A request takes as long as a real disk would: the head first seeks to the
+ * track of the first sector, which takes <tt>Stats.SeekTime / 4</tt> to
+ * settle plus time in proportion to the distance, up to
+ * <tt>Stats.SeekTime</tt> across the whole disk. It then waits for the sector
+ * to rotate under it, and transfers the sectors as they pass; a full rotation
+ * takes <tt>Stats.RotationTime</tt>. A run that continues onto the next track
+ * seeks to it and waits for its first sector. When the request is done, the
+ * disk's interrupt handler is called.
+ */
+public final class Disk {
+	/**
+	 * Allocate a new disk.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the directory holding the disk's file.
+	 */
+	public Disk(Privilege privilege, File directory) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+
+		numTracks = Config.getInteger("Disk.numTracks", 64);
+		sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+		Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0);
+
+		final File f = new File(directory, Config.getString("Disk.file",
+				"DISK"));
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				openFile(f);
+			}
+		});
+
+		Lib.assertTrue(file != null, "could not open the disk file");
+
+		completionInterrupt = new Runnable() {
+			public void run() {
+				completionInterrupt();
+			}
+		};
+	}
+
+	private void openFile(File f) {
+		try {
+			file = new RandomAccessFile(f, "rw");
+
+			long length = (long) getNumSectors() * sectorSize;
+			if (file.length() < length)
+				file.setLength(length);
+		}
+		catch (IOException e) {
+			file = null;
+		}
+	}
+
+	/**
+	 * Set this disk's interrupt handler, which is called every time a request
+	 * completes. Another request can be started from the handler.
+	 *
+	 * @param interruptHandler the callback to call when a request completes.
+	 */
+	public void setInterruptHandler(Runnable interruptHandler) {
+		this.interruptHandler = interruptHandler;
+	}
+
+	/**
+	 * Return the number of tracks on this disk.
+	 *
+	 * @return the number of tracks.
+	 */
+	public int getNumTracks() {
+		return numTracks;
+	}
+
+	/**
+	 * Return the number of sectors in each track.
+	 *
+	 * @return the number of sectors per track.
+	 */
+	public int getSectorsPerTrack() {
+		return sectorsPerTrack;
+	}
+
+	/**
+	 * Return the number of sectors on this disk.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getNumSectors() {
+		return numTracks * sectorsPerTrack;
+	}
+
+	/**
+	 * Return the track the head is over, which is the track of the last sector
+	 * transferred.
+	 *
+	 * @return the track number.
+	 */
+	public int getHeadTrack() {
+		return headTrack;
+	}
+
+	/**
+	 * Start reading consecutive sectors into an array. The array is filled in
+	 * when the request completes.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to store in the array.
+	 */
+	public void readRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(false, sector, count, data, offset);
+	}
+
+	/**
+	 * Start writing consecutive sectors from an array. The array is read when
+	 * the request completes, so it must not be changed until then.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the array containing the data to write.
+	 * @param offset the first byte to write from the array.
+	 */
+	public void writeRequest(int sector, int count, byte[] data, int offset) {
+		startRequest(true, sector, count, data, offset);
+	}
+
+	private void startRequest(boolean writing, int sector, int count,
+			byte[] data, int offset) {
+		Lib.assertTrue(!busy, "disk request already in progress");
+		Lib.assertTrue(count > 0 && sector >= 0
+				&& sector + count <= getNumSectors());
+		Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+		busy = true;
+		requestWriting = writing;
+		requestSector = sector;
+		requestCount = count;
+		requestData = data;
+		requestOffset = offset;
+
+		long now = privilege.stats.totalTicks;
+		long done = now;
+
+		int track = sector / sectorsPerTrack;
+		int first = sector % sectorsPerTrack;
+		int left = count;
+
+		while (left > 0) {
+			done += seekTime(Math.abs(track - headTrack));
+			headTrack = track;
+
+			// wait for the first sector to come around, then transfer
+			int n = Math.min(left, sectorsPerTrack - first);
+			long start = angle(first);
+			done += (start - done % RotationTime + RotationTime) % RotationTime;
+			done += angle(first + n) - start;
+
+			left -= n;
+			track++;
+			first = 0;
+		}
+
+		privilege.interrupt.schedule(Math.max(done - now, 1), "disk",
+				completionInterrupt);
+	}
+
+	/**
+	 * Return the time it takes to seek across a number of tracks.
+	 */
+	private long seekTime(int distance) {
+		if (distance == 0)
+			return 0;
+
+		long settle = SeekTime / 4;
+		return settle + (SeekTime - settle) * distance
+				/ Math.max(numTracks - 1, 1);
+	}
+
+	/**
+	 * Return the time in a rotation at which the start of a sector passes
+	 * under the head.
+	 */
+	private long angle(int sector) {
+		return (long) sector * RotationTime / sectorsPerTrack;
+	}
+
+	private void completionInterrupt() {
+		Lib.assertTrue(busy);
+
+		try {
+			file.seek((long) requestSector * sectorSize);
+
+			if (requestWriting) {
+				file.write(requestData, requestOffset, requestCount * sectorSize);
+				privilege.stats.numDiskWrites += requestCount;
+			}
+			else {
+				file.readFully(requestData, requestOffset, requestCount
+						* sectorSize);
+				privilege.stats.numDiskReads += requestCount;
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("disk I/O failed");
+		}
+
+		busy = false;
+		requestData = null;
+
+		if (interruptHandler != null)
+			interruptHandler.run();
+	}
+
+	/** The number of bytes in a sector. */
+	public static final int sectorSize = 512;
+
+	private static final int SeekTime = Stats.SeekTime;
+
+	private static final int RotationTime = Stats.RotationTime;
+
+	private Privilege privilege;
+
+	private RandomAccessFile file = null;
+
+	private int numTracks, sectorsPerTrack;
+
+	private int headTrack = 0;
+
+	private Runnable completionInterrupt;
+
+	private Runnable interruptHandler = null;
+
+	private boolean busy = false;
+
+	private boolean requestWriting;
+
+	private int requestSector, requestCount, requestOffset;
+
+	private byte[] requestData;
+}
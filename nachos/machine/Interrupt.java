@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,6 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
 	}
 
 	/**
@@ -119,16 +117,58 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Skip ahead in simulated time while nothing but the idle thread can run.
+	 * The time is advanced in whole kernel ticks to just before the next
+	 * pending interrupt is due, so that the next time interrupts are enabled
+	 * it occurs exactly when it would have if the idle thread had kept
+	 * yielding. The skipped time is counted as idle time. Interrupts must be
+	 * disabled.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (nextDue == Long.MAX_VALUE)
+			return;
+
+		Stats stats = privilege.stats;
+
+		long ticks = (nextDue - stats.totalTicks - 1) / Stats.KernelTick
+				* Stats.KernelTick;
+		if (ticks <= 0)
+			return;
+
+		Lib.debug(dbgInt, "Idling for " + ticks + " ticks");
+
+		stats.idleTicks += ticks;
+		stats.totalTicks += ticks;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (numPending == pendingTimes.length)
+			growPending();
+
+		// sift the new interrupt up from the end of the heap
+		long id = numPendingInterruptsCreated++;
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(time, id, pendingTimes[parent], pendingIds[parent]))
+				break;
+
+			movePending(parent, i);
+			i = parent;
+		}
+		setPending(i, time, id, type, handler);
+
+		nextDue = pendingTimes[0];
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -147,10 +187,15 @@ public final class Interrupt {
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
 		enabled = false;
-		checkIfDue();
+		if (stats.totalTicks >= nextDue || Lib.test(dbgInt))
+			checkIfDue();
 		enabled = true;
 	}
 
+	private long nextPendingTime() {
+		return nextDue;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,77 +204,126 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDue > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (nextDue <= time) {
+			String type = pendingTypes[0];
+			Runnable handler = pendingHandlers[0];
+			removeFirstPending();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
-	private void print() {
-		System.out.println("Time: " + privilege.stats.totalTicks
-				+ ", interrupts " + (enabled ? "on" : "off"));
-		System.out.println("Pending interrupts:");
+	/**
+	 * Remove the earliest pending interrupt from the heap.
+	 */
+	private void removeFirstPending() {
+		int last = --numPending;
+
+		long time = pendingTimes[last];
+		long id = pendingIds[last];
+		String type = pendingTypes[last];
+		Runnable handler = pendingHandlers[last];
+		pendingTypes[last] = null;
+		pendingHandlers[last] = null;
+
+		if (last == 0) {
+			nextDue = Long.MAX_VALUE;
+			return;
+		}
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// sift the last interrupt down from the root
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= last)
+				break;
+
+			if (child + 1 < last
+					&& before(pendingTimes[child + 1], pendingIds[child + 1],
+							pendingTimes[child], pendingIds[child]))
+				child++;
+
+			if (!before(pendingTimes[child], pendingIds[child], time, id))
+				break;
+
+			movePending(child, i);
+			i = child;
 		}
+		setPending(i, time, id, type, handler);
 
-		System.out.println("  (end of list)");
+		nextDue = pendingTimes[0];
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	/**
+	 * Order pending interrupts by time, and interrupts due at the same time in
+	 * the order they were scheduled.
+	 */
+	private static boolean before(long time1, long id1, long time2, long id2) {
+		return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+	private void movePending(int from, int to) {
+		setPending(to, pendingTimes[from], pendingIds[from],
+				pendingTypes[from], pendingHandlers[from]);
+	}
+
+	private void setPending(int i, long time, long id, String type,
+			Runnable handler) {
+		pendingTimes[i] = time;
+		pendingIds[i] = id;
+		pendingTypes[i] = type;
+		pendingHandlers[i] = handler;
+	}
 
-		long time;
+	private void growPending() {
+		int size = pendingTimes.length * 2;
 
-		String type;
+		pendingTimes = Arrays.copyOf(pendingTimes, size);
+		pendingIds = Arrays.copyOf(pendingIds, size);
+		pendingTypes = Arrays.copyOf(pendingTypes, size);
+		pendingHandlers = Arrays.copyOf(pendingHandlers, size);
+	}
+
+	private void print() {
+		System.out.println("Time: " + privilege.stats.totalTicks
+				+ ", interrupts " + (enabled ? "on" : "off"));
+		System.out.println("Pending interrupts:");
 
-		Runnable handler;
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = i;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				if (before(pendingTimes[i], pendingIds[i], pendingTimes[j],
+						pendingIds[j]))
+					return -1;
+				else if (before(pendingTimes[j], pendingIds[j],
+						pendingTimes[i], pendingIds[i]))
+					return 1;
+				else
+					return 0;
+			}
+		});
+
+		for (int i = 0; i < numPending; i++) {
+			System.out.println("  " + pendingTypes[order[i]]
+					+ ", scheduled at " + pendingTimes[order[i]]);
+		}
 
-		private long id;
+		System.out.println("  (end of list)");
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +332,27 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/*
+	 * Pending interrupts, kept as a binary min-heap ordered by time and then
+	 * by id. Each interrupt is a slot in these parallel arrays rather than an
+	 * object, so scheduling one allocates nothing once the arrays are large
+	 * enough.
+	 */
+	private long[] pendingTimes = new long[16];
+
+	private long[] pendingIds = new long[16];
+
+	private String[] pendingTypes = new String[16];
+
+	private Runnable[] pendingHandlers = new Runnable[16];
+
+	private int numPending = 0;
+
+	/**
+	 * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+	 * if there are none, so that a tick only has to compare it to the time.
+	 */
+	private long nextDue = Long.MAX_VALUE;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +364,9 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long nextPendingTime() {
+			return Interrupt.this.nextPendingTime();
+		}
 	}
 }
@@ -197,6 +197,9 @@ public final class Machine {
 		if (Config.getBoolean("Machine.stubFileSystem"))
 			stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+		if (Config.getBoolean("Machine.disk"))
+			disk = new Disk(privilege, testDirectory);
+
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
 	}
@@ -314,6 +317,17 @@ public final class Machine {
 		return interrupt;
 	}
 
+	/**
+	 * Return the statistics kept about this machine. The kernel adds to the
+	 * counters of events that only it can observe, such as pages read from
+	 * COFF files or swap.
+	 * 
+	 * @return the machine statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	/**
 	 * Return the hardware timer.
 	 * 
@@ -360,6 +374,15 @@ public final class Machine {
 		return stubFileSystem;
 	}
 
+	/**
+	 * Return the hard disk.
+	 * 
+	 * @return the hard disk, or <tt>null</tt> if it is not present.
+	 */
+	public static Disk disk() {
+		return disk;
+	}
+
 	/**
 	 * Return the network link.
 	 * 
@@ -390,6 +413,8 @@ public final class Machine {
 
 	private static FileSystem stubFileSystem = null;
 
+	private static Disk disk = null;
+
 	private static NetworkLink networkLink = null;
 
 	private static AutoGrader autoGrader = null;
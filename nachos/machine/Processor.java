@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,8 +53,21 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new DecodedInstruction[numPhysPages][];
+
+		// translated blocks don't trace individual instructions
+		if (Config.getBoolean("Processor.translate", false)
+				&& !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble))
+			translator = new Translator();
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0
+					&& tlbSize % tlbWays == 0);
+			tlbSets = tlbSize / tlbWays;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -188,6 +208,72 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided
+	 * into sets of this many consecutive entries; a translation can only be
+	 * found in the set chosen by <tt>getTLBSet()</tt>.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the set of the TLB that holds the translation for the specified
+	 * virtual page in the specified address space. The set is found by
+	 * hashing both, so the same page in different address spaces tends to
+	 * fall in different sets. The set occupies TLB entries
+	 * <tt>getTLBSet(vpn, asid) * getTLBWays()</tt> through
+	 * <tt>getTLBSet(vpn, asid) * getTLBWays() + getTLBWays() - 1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @param asid the address space identifier.
+	 * @return the TLB set for the page.
+	 */
+	public int getTLBSet(int vpn, int asid) {
+		Lib.assertTrue(usingTLB);
+
+		return tlbSet(vpn, asid);
+	}
+
+	private int tlbSet(int vpn, int asid) {
+		return Integer.remainderUnsigned(vpn * 0x9E3779B1 + asid
+				* 0x85EBCA6B, tlbSets);
+	}
+
+	/**
+	 * Return the current address space identifier. Only TLB entries with
+	 * this ASID are used to translate addresses.
+	 * 
+	 * @return the current ASID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Set the current address space identifier. Since TLB entries are tagged
+	 * with the ASID of their address space, the TLB does not have to be
+	 * flushed when switching between address spaces with different ASIDs.
+	 * 
+	 * @param asid the new ASID, between <tt>0</tt> and
+	 * <tt>numASIDs - 1</tt>.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+		if (asid != this.asid)
+			privilege.stats.numASIDSwitches++;
+
+		this.asid = asid;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +291,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be written into the set chosen by
+	 * <tt>getTLBSet()</tt> for its VPN and ASID; within that set its location
+	 * does not affect anything. With the default associativity the TLB is
+	 * fully associative and there is only one set.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -214,6 +302,8 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid
+				|| number / tlbWays == tlbSet(entry.vpn, entry.asid));
 
 		translations[number] = new TranslationEntry(entry);
 	}
@@ -299,7 +389,7 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw fault(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -314,37 +404,41 @@ public final class Processor {
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw fault(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the entries in the set for vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
+			int first = tlbSet(vpn, asid) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
+				TranslationEntry candidate = translations[i];
+				if (candidate.valid && candidate.vpn == vpn
+						&& candidate.asid == asid) {
+					entry = candidate;
 					break;
 				}
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw fault(exceptionTLBMiss, vaddr);
 			}
+			privilege.stats.numTLBHits++;
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw fault(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw fault(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -552,6 +646,18 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/** Number of sets in the TLB. */
+	private int tlbSets;
+
+	/** The current address space identifier. */
+	private int asid = 0;
+
+	/** Number of distinct address space identifiers. */
+	public static final int numASIDs = 256;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -570,6 +676,22 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Predecoded instructions, indexed by physical page and then by word
+	 * within the page. The array for a page is allocated the first time an
+	 * instruction is fetched from it.
+	 */
+	private DecodedInstruction[][] decodeCache;
+
+	/**
+	 * Runs hot basic blocks as generated code, or <tt>null</tt> if
+	 * <tt>Processor.translate</tt> is not set.
+	 */
+	private Translator translator = null;
+
+	/** The exception thrown for every user exception. */
+	private MipsException exception = new MipsException();
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,27 +701,70 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgTranslate = 'x';
+
+	/** Fetches of an address before a block is translated there. */
+	private static final int translateThreshold = 16;
+
+	/** Most instructions in a translated block. */
+	private static final int maxBlockLength = 64;
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	/**
+	 * Return this processor's exception object, set up to describe a new
+	 * exception. The same object is thrown for every exception, so that
+	 * faults, which are frequent under demand paging and with a TLB, do not
+	 * allocate.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException fault(int cause) {
+		return exception.set(cause, false, 0);
+	}
 
-			this.cause = cause;
+	/**
+	 * Return this processor's exception object, set up to describe a new
+	 * exception with a bad virtual address.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param badVAddr the virtual address that caused the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException fault(int cause, int badVAddr) {
+		return exception.set(cause, true, badVAddr);
+	}
+
+	/**
+	 * A user exception. Only one is ever allocated per processor (see
+	 * <tt>fault()</tt>). This is safe even though the processor is shared by
+	 * several threads, because <tt>handle()</tt> reads the fields before
+	 * calling into the kernel, and nothing that could switch threads runs
+	 * between the throw and the call to <tt>handle()</tt>.
+	 */
+	private class MipsException extends Exception {
+		public MipsException() {
+			// no stack trace; it would be captured once and never used
+			super(null, null, false, false);
 		}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		MipsException set(int cause, boolean hasBadVAddr, int badVAddr) {
+			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-			hasBadVAddr = true;
+			this.cause = cause;
+			this.hasBadVAddr = hasBadVAddr;
 			this.badVAddr = badVAddr;
+			return this;
 		}
 
 		public void handle() {
+			int cause = this.cause;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -616,6 +781,9 @@ public final class Processor {
 			if (!Machine.autoGrader().exceptionHandler(privilege))
 				return;
 
+			if (cause != exceptionSyscall)
+				privilege.stats.numFaults++;
+
 			exceptionHandler.run();
 		}
 
@@ -624,29 +792,54 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
-	private class Instruction {
-		public void run() throws MipsException {
-			// hopefully this looks familiar to 152 students?
-			fetch();
-			decode();
-			execute();
-			writeBack();
-		}
+	/**
+	 * Return the predecoded form of the instruction word <i>value</i> fetched
+	 * from physical address <i>paddr</i>, decoding it first if the cache has
+	 * no entry for that address or holds a different word there.
+	 * 
+	 * <p>
+	 * Entries are tagged with the raw instruction word rather than being
+	 * invalidated, because the kernel writes physical memory directly through
+	 * <tt>getMemory()</tt> (when loading COFF sections, in
+	 * <tt>writeVirtualMemory()</tt>, or when reusing a frame), bypassing
+	 * <tt>writeMem()</tt>.
+	 * 
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the instruction word at that address.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction lookupDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+		DecodedInstruction[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodeCache[ppn] = page;
 		}
 
-		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+		int index = (paddr % pageSize) / 4;
 
-			value = readMem(registers[regPC], 4);
+		DecodedInstruction decoded = page[index];
+		if (decoded == null) {
+			decoded = new DecodedInstruction();
+			page[index] = decoded;
+		}
+		else if (decoded.value == value) {
+			return decoded;
 		}
 
-		private void decode() {
+		decoded.decode(value);
+		return decoded;
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on the contents of any register.
+	 */
+	private static class DecodedInstruction {
+		void decode(int value) {
+			this.value = value;
+
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -674,24 +867,18 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
-			if (test(Mips.SIZEB))
+			if (Lib.test(Mips.SIZEB, flags))
 				size = 1;
-			else if (test(Mips.SIZEH))
+			else if (Lib.test(Mips.SIZEH, flags))
 				size = 2;
-			else if (test(Mips.SIZEW))
+			else if (Lib.test(Mips.SIZEW, flags))
 				size = 4;
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
-			if (test(Mips.DSTRA))
+			if (Lib.test(Mips.DSTRA, flags))
 				dstReg = regRA;
 			else if (format == Mips.IFMT)
 				dstReg = rt;
@@ -700,6 +887,1117 @@ public final class Processor {
 			else
 				dstReg = -1;
 
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg;
+	}
+
+	/**
+	 * Runs hot basic blocks of user code as generated Java classes, so that
+	 * the instructions in a block are not fetched, decoded and dispatched one
+	 * at a time.
+	 * 
+	 * <p>
+	 * A block starts at a PC that has been fetched often enough, and extends
+	 * to the end of its physical page, to the first instruction that always
+	 * traps (such as <tt>syscall</tt>), or through the delay slot of the first
+	 * branch or jump. It is compiled to a single method that operates directly
+	 * on <tt>registers</tt>, using the same delayed load and memory access
+	 * paths as the interpreter, so a block leaves the processor in exactly the
+	 * state the interpreter would have.
+	 * 
+	 * <p>
+	 * A block is only run when no interrupt can come due before its last
+	 * instruction, so all but the last of its ticks can be charged at once.
+	 * If an instruction in the block faults, the PC is left at that
+	 * instruction, the instructions before it are charged, and the exception
+	 * is handled exactly as if the interpreter had raised it.
+	 */
+	private final class Translator {
+		Translator() {
+			blocks = new TranslatedBlock[numPhysPages][];
+			counts = new int[numPhysPages][];
+		}
+
+		/**
+		 * Run the translated block starting at the current PC, whose
+		 * instruction has just been fetched from <i>paddr</i>, if there is
+		 * one and it is safe to do so. If the block runs, every instruction in
+		 * it but the last is charged to the simulated clock; the caller
+		 * charges the last one as if it had interpreted a single instruction.
+		 * 
+		 * @param paddr the physical address of the instruction at the PC.
+		 * @return <tt>true</tt> if a block ran, or <tt>false</tt> if the
+		 * instruction at the PC should be interpreted.
+		 * @exception MipsException if an instruction in the block faulted.
+		 */
+		boolean run(int paddr) throws MipsException {
+			int pc = registers[regPC];
+
+			// blocks are only entered in sequence, never in a delay slot
+			if (registers[regNextPC] != pc + 4)
+				return false;
+
+			int ppn = paddr / pageSize;
+			int index = (paddr % pageSize) / 4;
+
+			TranslatedBlock[] page = blocks[ppn];
+			if (page == null) {
+				page = new TranslatedBlock[pageSize / 4];
+				blocks[ppn] = page;
+				counts[ppn] = new int[pageSize / 4];
+			}
+
+			TranslatedBlock block = page[index];
+			if (block != null && !block.matches(pc, paddr)) {
+				page[index] = null;
+				block = null;
+			}
+
+			if (block == null) {
+				if (++counts[ppn][index] < translateThreshold)
+					return false;
+
+				counts[ppn][index] = 0;
+				block = compile(pc, paddr);
+				page[index] = block;
+			}
+
+			if (block.code == null)
+				return false;
+
+			Stats stats = privilege.stats;
+
+			if (privilege.interrupt.nextPendingTime() - stats.totalTicks < block.length)
+				return false;
+
+			try {
+				block.code.run(registers, this);
+			}
+			catch (MipsException e) {
+				// the delay slot of a taken branch has its PC set already
+				if (!block.endsInBranch || faultIndex != block.length - 1) {
+					registers[regPC] = pc + faultIndex * 4;
+					registers[regNextPC] = pc + faultIndex * 4 + 4;
+				}
+
+				stats.userTicks += faultIndex * Stats.UserTick;
+				stats.totalTicks += faultIndex * Stats.UserTick;
+				if (usingTLB)
+					stats.numTLBHits += faultIndex;
+				throw e;
+			}
+
+			if (!block.endsInBranch) {
+				registers[regPC] = pc + block.length * 4;
+				registers[regNextPC] = pc + block.length * 4 + 4;
+			}
+
+			stats.userTicks += (block.length - 1) * Stats.UserTick;
+			stats.totalTicks += (block.length - 1) * Stats.UserTick;
+
+			// a block lies on one page, so the fetches after the first, which
+			// the caller translated, hit the same TLB entry
+			if (usingTLB)
+				stats.numTLBHits += block.length - 1;
+			return true;
+		}
+
+		/**
+		 * Find the block starting at virtual address <i>pc</i> and physical
+		 * address <i>paddr</i>, and generate code for it.
+		 * 
+		 * @param pc the virtual address of the first instruction.
+		 * @param paddr the physical address of the first instruction.
+		 * @return the block, whose <tt>code</tt> is <tt>null</tt> if it could
+		 * not be translated.
+		 */
+		private TranslatedBlock compile(int pc, int paddr) {
+			int limit = Math.min(maxBlockLength, (pageSize - paddr % pageSize) / 4);
+
+			DecodedInstruction[] insts = new DecodedInstruction[limit];
+			int length = 0;
+			boolean endsInBranch = false;
+
+			while (length < limit) {
+				DecodedInstruction inst = decodeAt(paddr + length * 4);
+				if (!translatable(inst))
+					break;
+
+				if (Lib.test(Mips.BRANCH, inst.flags)) {
+					// the delay slot must be in the block too
+					if (length + 1 == limit)
+						break;
+
+					DecodedInstruction slot = decodeAt(paddr + length * 4 + 4);
+					if (!translatable(slot)
+							|| Lib.test(Mips.BRANCH, slot.flags))
+						break;
+
+					insts[length++] = inst;
+					insts[length++] = slot;
+					endsInBranch = true;
+					break;
+				}
+
+				insts[length++] = inst;
+			}
+
+			int[] words = new int[Math.max(length, 1)];
+			for (int i = 0; i < words.length; i++)
+				words[i] = Lib.bytesToInt(mainMemory, paddr + i * 4);
+
+			CompiledBlock code = null;
+			if (length > 0)
+				code = assemble(pc, insts, length);
+
+			Lib.debug(dbgTranslate, "translated " + length
+					+ " instructions at 0x" + Lib.toHexString(pc));
+
+			return new TranslatedBlock(pc, words, length, endsInBranch, code);
+		}
+
+		private DecodedInstruction decodeAt(int paddr) {
+			DecodedInstruction inst = new DecodedInstruction();
+			inst.decode(Lib.bytesToInt(mainMemory, paddr));
+			return inst;
+		}
+
+		private boolean translatable(DecodedInstruction inst) {
+			switch (inst.operation) {
+			case Mips.SYSCALL:
+			case Mips.UNIMPL:
+			case Mips.INVALID:
+				return false;
+			default:
+				return true;
+			}
+		}
+
+		/**
+		 * Generate and load a class that runs the first <i>length</i>
+		 * instructions in <i>insts</i>, which start at virtual address
+		 * <i>pc</i>.
+		 */
+		private CompiledBlock assemble(int pc, DecodedInstruction[] insts,
+				int length) {
+			BlockAssembler a = new BlockAssembler();
+
+			for (int i = 0; i < length; i++) {
+				boolean loadPending = (i == 0 || Lib.test(Mips.DELAYEDLOAD,
+						insts[i - 1].flags));
+				boolean inDelaySlot = (i > 0 && Lib.test(Mips.BRANCH,
+						insts[i - 1].flags));
+
+				emit(a, insts[i], pc + i * 4, i, loadPending);
+
+				if (inDelaySlot)
+					a.advancePC();
+			}
+
+			a.op(BlockAssembler.RETURN);
+
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup()
+						.defineHiddenClass(a.toClassFile(), true);
+
+				return (CompiledBlock) lookup.findConstructor(
+						lookup.lookupClass(), MethodType.methodType(void.class))
+						.invoke();
+			}
+			catch (Throwable e) {
+				Lib.debug(dbgTranslate, "could not load block at 0x"
+						+ Lib.toHexString(pc) + ": " + e);
+				return null;
+			}
+		}
+
+		/**
+		 * Generate code for a single instruction, mirroring
+		 * <tt>Instruction.execute()</tt> and <tt>Instruction.writeBack()</tt>.
+		 * 
+		 * @param a the assembler for the block.
+		 * @param inst the instruction.
+		 * @param vaddr the virtual address of the instruction.
+		 * @param index the position of the instruction in the block.
+		 * @param loadPending <tt>true</tt> if a delayed load might be in
+		 * progress when the instruction starts.
+		 */
+		private void emit(BlockAssembler a, DecodedInstruction inst,
+				int vaddr, int index, boolean loadPending) {
+			int flags = inst.flags;
+
+			boolean writesDst = (Lib.test(Mips.DST, flags) && inst.dstReg != 0);
+			boolean needsDst = (writesDst && !Lib.test(Mips.LINK, flags))
+					|| Lib.test(Mips.OVERFLOW, flags);
+
+			// execute
+			switch (inst.operation) {
+			case Mips.ADD:
+			case Mips.SUB:
+			case Mips.AND:
+			case Mips.OR:
+			case Mips.NOR:
+			case Mips.XOR:
+				if (!needsDst)
+					break;
+				a.src1(inst);
+				a.src2(inst);
+				switch (inst.operation) {
+				case Mips.ADD:
+					a.op(BlockAssembler.LADD);
+					break;
+				case Mips.SUB:
+					a.op(BlockAssembler.LSUB);
+					break;
+				case Mips.AND:
+					a.op(BlockAssembler.LAND);
+					break;
+				case Mips.OR:
+					a.op(BlockAssembler.LOR);
+					break;
+				case Mips.NOR:
+					a.op(BlockAssembler.LOR);
+					a.pushLong(-1);
+					a.op(BlockAssembler.LXOR);
+					break;
+				case Mips.XOR:
+					a.op(BlockAssembler.LXOR);
+					break;
+				}
+				a.storeDst();
+				break;
+
+			case Mips.SLL:
+			case Mips.SRA:
+			case Mips.SRL:
+				if (!needsDst)
+					break;
+				a.src2(inst);
+				a.shiftAmount(inst);
+				if (inst.operation == Mips.SLL)
+					a.op(BlockAssembler.LSHL);
+				else if (inst.operation == Mips.SRA)
+					a.op(BlockAssembler.LSHR);
+				else
+					a.op(BlockAssembler.LUSHR);
+				a.storeDst();
+				break;
+
+			case Mips.SLT:
+				if (!needsDst)
+					break;
+				// lcmp leaves -1 exactly when src1 < src2
+				a.src1(inst);
+				a.src2(inst);
+				a.op(BlockAssembler.LCMP);
+				a.pushInt(31);
+				a.op(BlockAssembler.IUSHR);
+				a.op(BlockAssembler.I2L);
+				a.storeDst();
+				break;
+
+			case Mips.LUI:
+				if (!needsDst)
+					break;
+				a.pushLong(inst.imm << 16);
+				a.storeDst();
+				break;
+
+			case Mips.MFLO:
+			case Mips.MFHI:
+				if (!needsDst)
+					break;
+				a.register(inst.operation == Mips.MFLO ? regLo : regHi);
+				a.op(BlockAssembler.I2L);
+				a.storeDst();
+				break;
+
+			case Mips.MTLO:
+			case Mips.MTHI:
+				a.op(BlockAssembler.ALOAD_1);
+				a.pushInt(inst.operation == Mips.MTLO ? regLo : regHi);
+				a.register(inst.rs);
+				a.op(BlockAssembler.IASTORE);
+				break;
+
+			case Mips.MULT:
+				a.op(BlockAssembler.ALOAD_2);
+				a.src1(inst);
+				a.src2(inst);
+				a.invoke("mult", "(JJ)V");
+				break;
+
+			case Mips.DIV:
+				a.op(BlockAssembler.ALOAD_2);
+				a.src1(inst);
+				a.src2(inst);
+				a.pushInt(index);
+				a.invoke("div", "(JJI)V");
+				break;
+
+			case Mips.JUMP:
+				if (inst.format == Mips.RFMT) {
+					a.register(inst.rs);
+					a.istore(BlockAssembler.JTARGET);
+				}
+				break;
+
+			case Mips.BEQ:
+			case Mips.BNE:
+			case Mips.BLEZ:
+			case Mips.BGTZ:
+			case Mips.BLTZ:
+			case Mips.BGEZ:
+				a.register(inst.rs);
+				int notTaken;
+				switch (inst.operation) {
+				case Mips.BEQ:
+					a.register(inst.rt);
+					notTaken = a.jump(BlockAssembler.IF_ICMPNE);
+					break;
+				case Mips.BNE:
+					a.register(inst.rt);
+					notTaken = a.jump(BlockAssembler.IF_ICMPEQ);
+					break;
+				case Mips.BLEZ:
+					notTaken = a.jump(BlockAssembler.IFGT);
+					break;
+				case Mips.BGTZ:
+					notTaken = a.jump(BlockAssembler.IFLE);
+					break;
+				case Mips.BLTZ:
+					notTaken = a.jump(BlockAssembler.IFGE);
+					break;
+				default:
+					notTaken = a.jump(BlockAssembler.IFLT);
+					break;
+				}
+				a.pushInt(1);
+				int done = a.jump(BlockAssembler.GOTO);
+				a.bind(notTaken);
+				a.pushInt(0);
+				a.bind(done);
+				a.istore(BlockAssembler.TAKEN);
+				break;
+
+			case Mips.LOAD:
+				a.op(BlockAssembler.ALOAD_2);
+				a.pushInt(inst.dstReg);
+				a.op(BlockAssembler.ALOAD_2);
+				a.address(inst);
+				a.pushInt(inst.size);
+				a.pushInt(index);
+				a.invoke("load", "(III)I");
+				if (!Lib.test(Mips.UNSIGNED, flags) && inst.size < 4) {
+					// sign extend
+					a.pushInt(32 - inst.size * 8);
+					a.op(BlockAssembler.ISHL);
+					a.pushInt(32 - inst.size * 8);
+					a.op(BlockAssembler.ISHR);
+				}
+				a.pushInt(0xFFFFFFFF);
+				a.invoke("delayedLoad", "(III)V");
+				break;
+
+			case Mips.LWL:
+			case Mips.LWR:
+				a.op(BlockAssembler.ALOAD_2);
+				a.address(inst);
+				a.pushInt(inst.dstReg);
+				a.pushInt(index);
+				a.invoke(inst.operation == Mips.LWL ? "lwl" : "lwr", "(III)V");
+				break;
+
+			case Mips.STORE:
+				a.op(BlockAssembler.ALOAD_2);
+				a.address(inst);
+				a.pushInt(inst.size);
+				a.register(inst.rt);
+				a.pushInt(index);
+				a.invoke("store", "(IIII)V");
+				break;
+
+			case Mips.SWL:
+			case Mips.SWR:
+				a.op(BlockAssembler.ALOAD_2);
+				a.address(inst);
+				a.register(inst.rt);
+				a.op(BlockAssembler.I2L);
+				a.pushInt(index);
+				a.invoke(inst.operation == Mips.SWL ? "swl" : "swr", "(IJI)V");
+				break;
+
+			default:
+				Lib.assertNotReached();
+			}
+
+			// write back
+			if (Lib.test(Mips.OVERFLOW, flags)) {
+				a.loadDst();
+				a.op(BlockAssembler.L2I);
+				a.op(BlockAssembler.I2L);
+				a.loadDst();
+				a.op(BlockAssembler.LCMP);
+				int ok = a.jump(BlockAssembler.IFEQ);
+				a.op(BlockAssembler.ALOAD_2);
+				a.pushInt(index);
+				a.invoke("overflow", "(I)V");
+				a.bind(ok);
+			}
+
+			if (!Lib.test(Mips.DELAYEDLOAD, flags) && loadPending) {
+				a.op(BlockAssembler.ALOAD_2);
+				a.invoke("finishLoad", "()V");
+			}
+
+			if (writesDst) {
+				a.op(BlockAssembler.ALOAD_1);
+				a.pushInt(inst.dstReg);
+				if (Lib.test(Mips.LINK, flags)) {
+					a.pushInt(vaddr + 8);
+				}
+				else {
+					a.loadDst();
+					a.op(BlockAssembler.L2I);
+				}
+				a.op(BlockAssembler.IASTORE);
+			}
+
+			if (Lib.test(Mips.BRANCH, flags)) {
+				a.op(BlockAssembler.ALOAD_1);
+				a.pushInt(regPC);
+				a.pushInt(vaddr + 4);
+				a.op(BlockAssembler.IASTORE);
+
+				a.op(BlockAssembler.ALOAD_1);
+				a.pushInt(regNextPC);
+				if (inst.operation == Mips.JUMP) {
+					a.jumpTarget(inst, vaddr);
+				}
+				else {
+					a.iload(BlockAssembler.TAKEN);
+					int notTaken = a.jump(BlockAssembler.IFEQ);
+					a.jumpTarget(inst, vaddr);
+					int done = a.jump(BlockAssembler.GOTO);
+					a.bind(notTaken);
+					a.pushInt(vaddr + 8);
+					a.bind(done);
+				}
+				a.op(BlockAssembler.IASTORE);
+			}
+		}
+
+		/*
+		 * The methods below are called by generated code. Those that can
+		 * fault record the position of the faulting instruction in the block.
+		 */
+
+		void finishLoad() {
+			Processor.this.finishLoad();
+		}
+
+		void delayedLoad(int target, int value, int mask) {
+			Processor.this.delayedLoad(target, value, mask);
+		}
+
+		int load(int addr, int size, int index) throws MipsException {
+			faultIndex = index;
+			return readMem(addr, size);
+		}
+
+		void store(int addr, int size, int value, int index)
+				throws MipsException {
+			faultIndex = index;
+			writeMem(addr, size, value);
+		}
+
+		void lwl(int addr, int dstReg, int index) throws MipsException {
+			faultIndex = index;
+			int value = readMem(addr & ~0x3, 4);
+			int preserved = (3 - (addr & 0x3)) * 8;
+			Processor.this.delayedLoad(dstReg, value << preserved,
+					-1 << preserved);
+		}
+
+		void lwr(int addr, int dstReg, int index) throws MipsException {
+			faultIndex = index;
+			int value = readMem(addr & ~0x3, 4);
+			int preserved = (addr & 0x3) * 8;
+			Processor.this.delayedLoad(dstReg, value >>> preserved,
+					-1 >>> preserved);
+		}
+
+		void swl(int addr, long src2, int index) throws MipsException {
+			faultIndex = index;
+			int value = readMem(addr & ~0x3, 4);
+			int preserved = (3 - (addr & 0x3)) * 8;
+			int mask = -1 >>> preserved;
+			long dst = src2 >>> preserved;
+			dst = (dst & mask) | (value & ~mask);
+			writeMem(addr & ~0x3, 4, (int) dst);
+		}
+
+		void swr(int addr, long src2, int index) throws MipsException {
+			faultIndex = index;
+			int value = readMem(addr & ~0x3, 4);
+			int preserved = (addr & 0x3) * 8;
+			int mask = -1 << preserved;
+			long dst = src2 << preserved;
+			dst = (dst & mask) | (value & ~mask);
+			writeMem(addr & ~0x3, 4, (int) dst);
+		}
+
+		void mult(long src1, long src2) {
+			long dst = src1 * src2;
+			registers[regLo] = (int) Lib.extract(dst, 0, 32);
+			registers[regHi] = (int) Lib.extract(dst, 32, 32);
+		}
+
+		void div(long src1, long src2, int index) throws MipsException {
+			try {
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1)
+					throw new ArithmeticException();
+			}
+			catch (ArithmeticException e) {
+				faultIndex = index;
+				throw fault(exceptionOverflow);
+			}
+		}
+
+		void overflow(int index) throws MipsException {
+			faultIndex = index;
+			throw fault(exceptionOverflow);
+		}
+
+		/** Translated blocks, indexed like <tt>decodeCache</tt>. */
+		private TranslatedBlock[][] blocks;
+
+		/** How often each address has been fetched without a block. */
+		private int[][] counts;
+
+		/** The position in its block of the last instruction that faulted. */
+		private int faultIndex;
+	}
+
+	/**
+	 * A block found by the translator, tagged like a predecoded instruction
+	 * with the words it was translated from.
+	 */
+	private class TranslatedBlock {
+		TranslatedBlock(int vaddr, int[] words, int length,
+				boolean endsInBranch, CompiledBlock code) {
+			this.vaddr = vaddr;
+			this.words = words;
+			this.length = length;
+			this.endsInBranch = endsInBranch;
+			this.code = code;
+		}
+
+		boolean matches(int vaddr, int paddr) {
+			if (vaddr != this.vaddr)
+				return false;
+
+			for (int i = 0; i < words.length; i++) {
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4) != words[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		int vaddr, length;
+
+		int[] words;
+
+		boolean endsInBranch;
+
+		CompiledBlock code;
+	}
+
+	/**
+	 * The superclass of the classes generated for translated blocks.
+	 */
+	abstract static class CompiledBlock {
+		CompiledBlock() {
+		}
+
+		/**
+		 * Run the block.
+		 * 
+		 * @param registers the processor's registers.
+		 * @param translator the translator, for memory accesses and delayed
+		 * loads.
+		 */
+		abstract void run(int[] registers, Translator translator)
+				throws MipsException;
+	}
+
+	/**
+	 * Writes the class file for a translated block: a subclass of
+	 * <tt>CompiledBlock</tt> with a single <tt>run()</tt> method. The class
+	 * file version predates stack map frames, so the verifier infers types
+	 * itself and no frames need to be emitted for branches.
+	 */
+	private static class BlockAssembler {
+		/**
+		 * Push the value of register <i>number</i>.
+		 */
+		void register(int number) {
+			if (number == 0) {
+				pushInt(0);
+			}
+			else {
+				op(ALOAD_1);
+				pushInt(number);
+				op(IALOAD);
+			}
+		}
+
+		/**
+		 * Push the first source operand of <i>inst</i>, as a long.
+		 */
+		void src1(DecodedInstruction inst) {
+			if (Lib.test(Mips.SRC1SH, inst.flags)) {
+				pushLong(inst.sh);
+				return;
+			}
+
+			register(inst.rs);
+			op(I2L);
+			if (Lib.test(Mips.UNSIGNED, inst.flags)) {
+				pushLong(0xFFFFFFFFL);
+				op(LAND);
+			}
+		}
+
+		/**
+		 * Push the second source operand of <i>inst</i>, as a long.
+		 */
+		void src2(DecodedInstruction inst) {
+			if (Lib.test(Mips.SRC2IMM, inst.flags)) {
+				if (Lib.test(Mips.UNSIGNED, inst.flags))
+					pushLong(inst.imm & 0xFFFFFFFFL);
+				else
+					pushLong(inst.imm);
+				return;
+			}
+
+			register(inst.rt);
+			op(I2L);
+			if (Lib.test(Mips.UNSIGNED, inst.flags)) {
+				pushLong(0xFFFFFFFFL);
+				op(LAND);
+			}
+		}
+
+		/**
+		 * Push the shift amount of a shift instruction.
+		 */
+		void shiftAmount(DecodedInstruction inst) {
+			if (Lib.test(Mips.SRC1SH, inst.flags)) {
+				pushInt(inst.sh & 0x1F);
+			}
+			else {
+				register(inst.rs);
+				pushInt(0x1F);
+				op(IAND);
+			}
+		}
+
+		/**
+		 * Push the address accessed by a load or store.
+		 */
+		void address(DecodedInstruction inst) {
+			if (inst.rs == 0) {
+				pushInt(inst.imm);
+				return;
+			}
+
+			register(inst.rs);
+			if (inst.imm != 0) {
+				pushInt(inst.imm);
+				op(IADD);
+			}
+		}
+
+		/**
+		 * Push the target of a branch or jump at <i>vaddr</i>.
+		 */
+		void jumpTarget(DecodedInstruction inst, int vaddr) {
+			if (inst.format == Mips.RFMT)
+				iload(JTARGET);
+			else if (inst.format == Mips.IFMT)
+				pushInt(vaddr + 4 + (inst.imm << 2));
+			else
+				pushInt(((vaddr + 4) & 0xF0000000) | (inst.target << 2));
+		}
+
+		/**
+		 * Move the nextPC register into the PC register, and advance the
+		 * nextPC register.
+		 */
+		void advancePC() {
+			op(ALOAD_1);
+			pushInt(regPC);
+			register(regNextPC);
+			op(IASTORE);
+
+			op(ALOAD_1);
+			pushInt(regNextPC);
+			register(regPC);
+			pushInt(4);
+			op(IADD);
+			op(IASTORE);
+		}
+
+		void storeDst() {
+			op(LSTORE);
+			op(DST);
+		}
+
+		void loadDst() {
+			op(LLOAD);
+			op(DST);
+		}
+
+		void istore(int local) {
+			op(ISTORE);
+			op(local);
+		}
+
+		void iload(int local) {
+			op(ILOAD);
+			op(local);
+		}
+
+		/**
+		 * Call a method of the translator. The translator must already have
+		 * been pushed, followed by the arguments.
+		 */
+		void invoke(String name, String descriptor) {
+			op(INVOKEVIRTUAL);
+			op2(methodRef(translatorName, name, descriptor));
+		}
+
+		void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				op(ICONST_0 + value);
+			}
+			else if (value == (byte) value) {
+				op(BIPUSH);
+				op(value);
+			}
+			else if (value == (short) value) {
+				op(SIPUSH);
+				op2(value);
+			}
+			else {
+				op(LDC_W);
+				op2(constant("I" + value, 3, value, 4, 1));
+			}
+		}
+
+		void pushLong(long value) {
+			if (value == 0 || value == 1) {
+				op(LCONST_0 + (int) value);
+			}
+			else {
+				op(LDC2_W);
+				op2(constant("J" + value, 5, value, 8, 2));
+			}
+		}
+
+		/**
+		 * Emit a forward branch, to be bound to its target later.
+		 * 
+		 * @return the position of the branch.
+		 */
+		int jump(int opcode) {
+			int position = codeLength;
+			op(opcode);
+			op2(0);
+			return position;
+		}
+
+		/**
+		 * Make the branch at <i>position</i> target the next instruction
+		 * emitted.
+		 */
+		void bind(int position) {
+			int offset = codeLength - position;
+			code[position + 1] = (byte) (offset >> 8);
+			code[position + 2] = (byte) offset;
+		}
+
+		void op(int value) {
+			if (codeLength == code.length) {
+				byte[] grown = new byte[code.length * 2];
+				System.arraycopy(code, 0, grown, 0, codeLength);
+				code = grown;
+			}
+
+			code[codeLength++] = (byte) value;
+		}
+
+		private void op2(int value) {
+			op(value >> 8);
+			op(value);
+		}
+
+		byte[] toClassFile() {
+			int thisClass = classRef(blockName);
+			int superClass = classRef(superName);
+			int superInit = methodRef(superName, "<init>", "()V");
+			int codeAttribute = utf8("Code");
+			int initName = utf8("<init>");
+			int initDescriptor = utf8("()V");
+			int runName = utf8("run");
+			int runDescriptor = utf8("([I" + "L" + translatorName + ";)V");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			try {
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(49);
+
+				out.writeShort(poolCount);
+				pool.writeTo(out);
+
+				out.writeShort(ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(0); // interfaces
+				out.writeShort(0); // fields
+
+				out.writeShort(2); // methods
+
+				out.writeShort(0);
+				out.writeShort(initName);
+				out.writeShort(initDescriptor);
+				out.writeShort(1);
+				out.writeShort(codeAttribute);
+				out.writeInt(17);
+				out.writeShort(1); // max stack
+				out.writeShort(1); // max locals
+				out.writeInt(5);
+				out.writeByte(ALOAD_0);
+				out.writeByte(INVOKESPECIAL);
+				out.writeShort(superInit);
+				out.writeByte(RETURN);
+				out.writeShort(0); // exception table
+				out.writeShort(0); // attributes
+
+				out.writeShort(0);
+				out.writeShort(runName);
+				out.writeShort(runDescriptor);
+				out.writeShort(1);
+				out.writeShort(codeAttribute);
+				out.writeInt(12 + codeLength);
+				out.writeShort(maxStack);
+				out.writeShort(maxLocals);
+				out.writeInt(codeLength);
+				out.write(code, 0, codeLength);
+				out.writeShort(0); // exception table
+				out.writeShort(0); // attributes
+
+				out.writeShort(0); // class attributes
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+
+			return bytes.toByteArray();
+		}
+
+		private int utf8(String value) {
+			Integer index = constants.get("U" + value);
+			if (index != null)
+				return index;
+
+			poolOut(1);
+			try {
+				poolData.writeUTF(value);
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+			return addConstant("U" + value, 1);
+		}
+
+		private int classRef(String name) {
+			Integer index = constants.get("C" + name);
+			if (index != null)
+				return index;
+
+			int nameIndex = utf8(name);
+			poolOut(7);
+			poolShort(nameIndex);
+			return addConstant("C" + name, 1);
+		}
+
+		private int methodRef(String owner, String name, String descriptor) {
+			String key = "M" + owner + "." + name + descriptor;
+			Integer index = constants.get(key);
+			if (index != null)
+				return index;
+
+			int ownerIndex = classRef(owner);
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+
+			Integer nameAndType = constants.get("N" + name + descriptor);
+			if (nameAndType == null) {
+				poolOut(12);
+				poolShort(nameIndex);
+				poolShort(descriptorIndex);
+				nameAndType = addConstant("N" + name + descriptor, 1);
+			}
+
+			poolOut(10);
+			poolShort(ownerIndex);
+			poolShort(nameAndType);
+			return addConstant(key, 1);
+		}
+
+		private int constant(String key, int tag, long value, int size,
+				int slots) {
+			Integer index = constants.get(key);
+			if (index != null)
+				return index;
+
+			poolOut(tag);
+			for (int shift = size * 8 - 8; shift >= 0; shift -= 8)
+				poolOut((int) (value >> shift));
+			return addConstant(key, slots);
+		}
+
+		private void poolOut(int value) {
+			pool.write(value);
+		}
+
+		private void poolShort(int value) {
+			pool.write(value >> 8);
+			pool.write(value);
+		}
+
+		private int addConstant(String key, int slots) {
+			int index = poolCount;
+			constants.put(key, index);
+			poolCount += slots;
+			return index;
+		}
+
+		private byte[] code = new byte[256];
+
+		private int codeLength = 0;
+
+		private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+		private DataOutputStream poolData = new DataOutputStream(pool);
+
+		private int poolCount = 1;
+
+		private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+
+		private static final String blockName = "nachos/machine/TranslatedBlock";
+
+		private static final String superName = "nachos/machine/Processor$CompiledBlock";
+
+		private static final String translatorName = "nachos/machine/Processor$Translator";
+
+		// locals of run(): this, registers, translator, taken, jtarget, dst
+		static final int TAKEN = 3, JTARGET = 4, DST = 5;
+
+		private static final int maxLocals = 7, maxStack = 16;
+
+		static final int ACC_FINAL = 0x0010, ACC_SUPER = 0x0020,
+				ACC_SYNTHETIC = 0x1000;
+
+		static final int ICONST_0 = 0x03, LCONST_0 = 0x09, BIPUSH = 0x10,
+				SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15,
+				LLOAD = 0x16, ALOAD_0 = 0x2A, ALOAD_1 = 0x2B, ALOAD_2 = 0x2C,
+				IALOAD = 0x2E, ISTORE = 0x36, LSTORE = 0x37, IASTORE = 0x4F,
+				IADD = 0x60, LADD = 0x61, LSUB = 0x65, ISHL = 0x78,
+				LSHL = 0x79, ISHR = 0x7A, LSHR = 0x7B, IUSHR = 0x7C,
+				LUSHR = 0x7D, IAND = 0x7E, LAND = 0x7F, LOR = 0x81,
+				LXOR = 0x83, I2L = 0x85, L2I = 0x88, LCMP = 0x94, IFEQ = 0x99,
+				IFLT = 0x9B, IFGE = 0x9C, IFGT = 0x9D, IFLE = 0x9E,
+				IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, GOTO = 0xA7,
+				RETURN = 0xB1, INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7;
+	}
+
+	private class Instruction {
+		public void run() throws MipsException {
+			// hopefully this looks familiar to 152 students?
+			fetch();
+
+			if (translator != null && translator.run(paddr))
+				return;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		private void fetch() throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\tfetch vaddr=0x"
+						+ Lib.toHexString(registers[regPC]));
+
+			paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr);
+		}
+
+		private void decode() {
+			DecodedInstruction decoded = lookupDecoded(paddr, value);
+
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
+
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -710,11 +2008,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -886,7 +2179,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw fault(exceptionOverflow);
 				}
 				break;
 
@@ -956,7 +2249,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw fault(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1027,7 +2320,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw fault(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1037,7 +2330,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw fault(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1070,7 +2363,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
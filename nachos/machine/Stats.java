@@ -19,18 +19,41 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks + ", idle " + idleTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
-				+ ", TLB misses " + numTLBMisses);
+				+ ", faults delivered " + numFaults);
+		System.out.println("TLB: hits " + numTLBHits + ", misses "
+				+ numTLBMisses + ", ASID switches " + numASIDSwitches);
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		if (numSegmentWrites > 0)
+			System.out.println("Log: segment writes " + numSegmentWrites
+					+ ", cleaner reads " + numCleanerReads
+					+ ", cleaner writes " + numCleanerWrites
+					+ ", write amplification "
+					+ (numLogBytesWritten > 0 ? "" + getWriteAmplification() : "n/a"));
+	}
+
+	/**
+	 * Return the number of bytes written to the disk for each byte written to
+	 * a file of the log-structured file system.
+	 *
+	 * @return the write amplification, or <tt>NaN</tt> if no file has been
+	 * written.
+	 */
+	public double getWriteAmplification() {
+		if (numLogBytesWritten == 0)
+			return Double.NaN;
+
+		return Math.round((double) numDiskWrites * Disk.sectorSize * 100
+				/ numLogBytesWritten) / 100.0;
 	}
 
 	/**
@@ -48,6 +71,12 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time that Nachos has skipped over while
+	 * only the idle thread could run.
+	 */
+	public long idleTicks = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -63,9 +92,24 @@ public final class Stats {
 	/** The total number of page faults that have occurred. */
 	public int numPageFaults = 0;
 
+	/** The total number of TLB hits that have occurred. */
+	public long numTLBHits = 0;
+
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/**
+	 * The total number of address space switches made by changing the ASID,
+	 * keeping the contents of the TLB.
+	 */
+	public int numASIDSwitches = 0;
+
+	/**
+	 * The total number of user exceptions other than syscalls that have been
+	 * delivered to the kernel.
+	 */
+	public int numFaults = 0;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
@@ -75,6 +119,24 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/** The total number of segments written by the log-structured file system. */
+	public int numSegmentWrites = 0;
+
+	/**
+	 * The total number of blocks the segment cleaner has read. A block of the
+	 * log-structured file system is one sector.
+	 */
+	public int numCleanerReads = 0;
+
+	/**
+	 * The total number of live blocks the segment cleaner has moved, counting
+	 * a block of inodes once however many of its inodes were live.
+	 */
+	public int numCleanerWrites = 0;
+
+	/** The total number of bytes written to files in the log. */
+	public long numLogBytesWritten = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
@@ -98,7 +160,8 @@ public final class Stats {
 	public static final int RotationTime = 500;
 
 	/**
-	 * The amount of simulated time required for the disk to seek.
+	 * The amount of simulated time required for the disk to seek from the
+	 * first track to the last.
 	 */
 	public static final int SeekTime = 500;
 
@@ -8,10 +8,23 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * How open files reach their host files is set by <tt>StubFileSystem.io</tt>.
+ * With <tt>stream</tt>, the default, each transfer seeks the file and then
+ * reads or writes it. With <tt>channel</tt>, each transfer is a single
+ * positional read or write on the file's <tt>FileChannel</tt>. With
+ * <tt>mapped</tt>, a file is also mapped into memory the first time it is
+ * read, and transfers within the mapped region are copies to or from the
+ * mapping; this suits files that are read much more than they grow. Every
+ * transfer is charged the same simulated time whichever is used.
  */
 public class StubFileSystem implements FileSystem {
 	/**
@@ -23,6 +36,16 @@ public class StubFileSystem implements FileSystem {
 	public StubFileSystem(Privilege privilege, File directory) {
 		this.privilege = privilege;
 		this.directory = directory;
+
+		String io = Config.getString("StubFileSystem.io", "stream");
+		if (io.equals("stream"))
+			mode = ioStream;
+		else if (io.equals("channel"))
+			mode = ioChannel;
+		else if (io.equals("mapped"))
+			mode = ioMapped;
+		else
+			Lib.assertNotReached("unknown StubFileSystem.io: " + io);
 	}
 
 	public OpenFile open(String name, boolean truncate) {
@@ -32,6 +55,10 @@ public class StubFileSystem implements FileSystem {
 
 		delay();
 
+		// a mapping past the new end of the file must not be touched
+		if (truncate)
+			truncations++;
+
 		try {
 			return new StubOpenFile(name, truncate);
 		}
@@ -50,6 +77,8 @@ public class StubFileSystem implements FileSystem {
 
 		delay();
 
+		truncations++;
+
 		FileRemover fr = new FileRemover(new File(directory, name));
 		privilege.doPrivileged(fr);
 		return fr.successful;
@@ -95,6 +124,9 @@ public class StubFileSystem implements FileSystem {
 			if (file == null)
 				throw new IOException();
 
+			if (mode != ioStream)
+				channel = file.getChannel();
+
 			open = true;
 			openCount++;
 		}
@@ -121,6 +153,15 @@ public class StubFileSystem implements FileSystem {
 			try {
 				delay();
 
+				if (pos < 0)
+					return -1;
+
+				if (mode == ioMapped)
+					return readMapped(pos, buf, offset, length);
+
+				if (mode == ioChannel)
+					return readChannel(pos, buf, offset, length);
+
 				file.seek(pos);
 				return Math.max(0, file.read(buf, offset, length));
 			}
@@ -137,8 +178,27 @@ public class StubFileSystem implements FileSystem {
 			try {
 				delay();
 
-				file.seek(pos);
-				file.write(buf, offset, length);
+				if (pos < 0)
+					return -1;
+
+				if (mode == ioStream) {
+					file.seek(pos);
+					file.write(buf, offset, length);
+					return length;
+				}
+
+				if (mode == ioMapped && mapIsCurrent()
+						&& (long) pos + length <= map.capacity()) {
+					ByteBuffer view = map.duplicate();
+					view.position(pos);
+					view.put(buf, offset, length);
+					return length;
+				}
+
+				ByteBuffer source = ByteBuffer.wrap(buf, offset, length);
+				while (source.hasRemaining())
+					channel.write(source, pos + source.position() - offset);
+
 				return length;
 			}
 			catch (IOException e) {
@@ -155,12 +215,63 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		/**
+		 * Read with positional reads on the channel, until the transfer is
+		 * complete or the end of the file is reached.
+		 */
+		private int readChannel(int pos, byte[] buf, int offset, int length)
+				throws IOException {
+			ByteBuffer target = ByteBuffer.wrap(buf, offset, length);
+			while (target.hasRemaining()) {
+				if (channel.read(target, pos + target.position() - offset) < 0)
+					break;
+			}
+
+			return target.position() - offset;
+		}
+
+		/**
+		 * Read from the mapping, mapping the file again if it has grown past
+		 * the region read or may have been truncated.
+		 */
+		private int readMapped(int pos, byte[] buf, int offset, int length)
+				throws IOException {
+			if (!mapIsCurrent() || (long) pos + length > map.capacity()) {
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE)
+					return readChannel(pos, buf, offset, length);
+
+				if (map == null || size != map.capacity())
+					map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				mapTruncations = truncations;
+			}
+
+			int amount = Math.max(0, Math.min(length, map.capacity() - pos));
+
+			ByteBuffer view = map.duplicate();
+			view.position(Math.min(pos, map.capacity()));
+			view.get(buf, offset, amount);
+			return amount;
+		}
+
+		/**
+		 * Return whether the file has been mapped, and no file has been
+		 * truncated or removed since, so that all of the mapping is still
+		 * backed by the file.
+		 */
+		private boolean mapIsCurrent() {
+			return map != null && mapTruncations == truncations;
+		}
+
 		public void close() {
 			if (open) {
 				open = false;
 				openCount--;
 			}
 
+			// the mapping is unmapped once it is collected
+			map = null;
+
 			try {
 				file.close();
 			}
@@ -170,11 +281,31 @@ public class StubFileSystem implements FileSystem {
 
 		private RandomAccessFile file = null;
 
+		/** The file's channel, unless using <tt>stream</tt> transfers. */
+		private FileChannel channel = null;
+
+		/** The file mapped into memory, once it is read in <tt>mapped</tt> mode. */
+		private MappedByteBuffer map = null;
+
+		/** The value of <tt>truncations</tt> when <tt>map</tt> was checked. */
+		private int mapTruncations;
+
 		private boolean open = false;
 	}
 
 	public int openCount = 0;
 
+	private static final int ioStream = 0, ioChannel = 1, ioMapped = 2;
+
+	/** How open files reach their host files. */
+	private int mode;
+
+	/**
+	 * The number of times a file has been truncated or removed. A mapping made
+	 * before the last of these may extend past the end of its file.
+	 */
+	private int truncations = 0;
+
 	private static final int maxOpenFiles = 32;
 
 	private Privilege privilege;
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +23,16 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * By default, control is handed from one Java thread to the next with
+ * <tt>wait()</tt> and <tt>notify()</tt>, and at most <tt>maxThreads</tt> TCBs
+ * may exist at once. Setting <tt>TCB.handoff</tt> to <tt>park</tt> hands off
+ * control with <tt>LockSupport.park()</tt> and <tt>unpark()</tt> instead, and
+ * removes the limit unless <tt>TCB.maxThreads</tt> is set. Setting
+ * <tt>TCB.virtualThreads</tt> runs TCBs on virtual threads, when the JVM has
+ * them, and implies <tt>park</tt>. <tt>TCB.stackSize</tt> sets the stack
+ * size, in bytes, of platform threads.
  */
 public final class TCB {
 	/**
@@ -39,6 +51,25 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			try {
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				unstarted = Class.forName("java.lang.Thread$Builder")
+						.getMethod("unstarted", Runnable.class);
+			}
+			catch (Exception e) {
+				System.out.print(" (no virtual threads)");
+				ofVirtual = null;
+			}
+		}
+
+		parkHandoff = (ofVirtual != null || Config.getString("TCB.handoff",
+				"monitor").equals("park"));
+
+		threadLimit = Config.getInteger("TCB.maxThreads", parkHandoff ? 0
+				: maxThreads);
+		stackSize = Config.getInteger("TCB.stackSize", 0);
 	}
 
 	/**
@@ -68,7 +99,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(threadLimit == 0 || runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +133,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newThread(tcbTarget);
 				}
 			});
 
@@ -271,6 +302,25 @@ public final class TCB {
 		}
 	}
 
+	/**
+	 * Create the Java thread for a TCB: a virtual thread if
+	 * <tt>TCB.virtualThreads</tt> is set and available, and otherwise a
+	 * platform thread with the configured stack size.
+	 */
+	private static Thread newThread(Runnable target) {
+		if (ofVirtual != null) {
+			try {
+				return (Thread) unstarted.invoke(ofVirtual.invoke(null),
+						target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("could not create virtual thread: " + e);
+			}
+		}
+
+		return new Thread(null, target, "TCB", stackSize);
+	}
+
 	/**
 	 * Invoked by threadroot() and by contextSwitch() when it is necessary to
 	 * wait for another TCB to context switch to this TCB. Since this TCB might
@@ -298,12 +348,20 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
+	private void waitForInterrupt() {
+		if (parkHandoff) {
+			while (!running)
+				LockSupport.park(this);
+			return;
+		}
+
+		synchronized (this) {
+			while (!running) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
 			}
 		}
 	}
@@ -314,9 +372,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		if (parkHandoff) {
+			running = true;
+			LockSupport.unpark(javaThread);
+			return;
+		}
+
+		synchronized (this) {
+			running = true;
+			notify();
+		}
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,10 +408,26 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, unless <tt>TCB.maxThreads</tt> or <tt>TCB.handoff</tt> says
+	 * otherwise.
 	 */
 	public static final int maxThreads = 250;
 
+	/** The limit actually enforced on TCBs, or 0 for no limit. */
+	private static int threadLimit = maxThreads;
+
+	/** <tt>true</tt> to hand off control with park and unpark. */
+	private static boolean parkHandoff = false;
+
+	/** The stack size of new platform threads, or 0 for the default. */
+	private static long stackSize = 0;
+
+	/** <tt>Thread.ofVirtual()</tt>, if virtual threads are in use. */
+	private static Method ofVirtual = null;
+
+	/** <tt>Thread.Builder.unstarted()</tt>, if virtual threads are in use. */
+	private static Method unstarted = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -368,7 +450,7 @@ public final class TCB {
 	 * each TCB object. TCB objects are removed only in each of the
 	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
 	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+	 * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
 	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
 	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
 	 * first TCB is created, this vector is basically never empty.
@@ -403,7 +485,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
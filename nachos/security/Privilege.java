@@ -157,6 +157,14 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the due time of the next pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long nextPendingTime();
 	}
 
 	/**
@@ -0,0 +1,71 @@
+/*
+ * dup1.c
+ *
+ * Simple program for testing dup.  It reads a file through a
+ * descriptor and its duplicate in turn, checking that the two share
+ * the file position, and then closes the original to check that the
+ * duplicate still works.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char *fname = "dup1.dat";
+    char buf[16];
+    int fd, fd2, r;
+
+    fd = creat (fname);
+    if (fd < 0) {
+	printf ("...failed to create %s (fd = %d)\n", fname, fd);
+	exit (-1);
+    }
+    write (fd, "0123456789", 10);
+    close (fd);
+
+    fd = open (fname);
+    printf ("duplicating %d...\n", fd);
+    fd2 = dup (fd);
+    if (fd2 < 0 || fd2 == fd) {
+	printf ("...failed (fd2 = %d)\n", fd2);
+	exit (-1);
+    }
+    printf ("...passed (fd2 = %d)\n", fd2);
+
+    printf ("reading through both...\n");
+    r = read (fd, buf, 4);
+    if (r != 4 || strncmp (buf, "0123", 4) != 0) {
+	printf ("...failed (read %d bytes from %d)\n", r, fd);
+	exit (-1);
+    }
+    // the duplicate carries on where the original stopped
+    r = read (fd2, buf, 4);
+    if (r != 4 || strncmp (buf, "4567", 4) != 0) {
+	printf ("...failed (read %d bytes from %d)\n", r, fd2);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("closing %d...\n", fd);
+    close (fd);
+    r = read (fd2, buf, 4);
+    if (r != 2 || strncmp (buf, "89", 2) != 0) {
+	printf ("...failed (read %d bytes from %d)\n", r, fd2);
+	exit (-1);
+    }
+    r = read (fd, buf, 4);
+    if (r != -1) {
+	printf ("...failed (read %d bytes from closed %d)\n", r, fd);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    close (fd2);
+    unlink (fname);
+
+    // the return value from main is used as the status to exit
+    return 0;
+}
@@ -0,0 +1,70 @@
+/*
+ * fork1.c
+ *
+ * Simple program for testing fork.  The child writes to a file that
+ * the parent opened before forking and exits; the parent joins it and
+ * then checks that the child's write moved the file position the two
+ * processes share.
+ *
+ * fork is not supported with demand paging, so under VMProcess this
+ * test stops after fork returns -1.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char *fname = "fork1.dat";
+    char buf[16];
+    int fd, pid, r, status = 0;
+
+    fd = creat (fname);
+    if (fd < 0) {
+	printf ("...failed to create %s (fd = %d)\n", fname, fd);
+	exit (-1);
+    }
+
+    printf ("forking...\n");
+    pid = fork ();
+    if (pid == 0) {
+	// the child shares fd with its parent
+	if (write (fd, "child ", 6) != 6)
+	    exit (-2);
+	exit (1);
+    } else if (pid > 0) {
+	printf ("...passed (pid = %d)\n", pid);
+    } else {
+	printf ("...failed (pid = %d)\n", pid);
+	exit (-1);
+    }
+
+    printf ("joining %d...\n", pid);
+    r = join (pid, &status);
+    if (r > 0 && status == 1) {
+	printf ("...passed (status from child = %d)\n", status);
+    } else {
+	printf ("...failed (r = %d, status = %d)\n", r, status);
+	exit (-1);
+    }
+
+    printf ("writing after the child...\n");
+    write (fd, "parent", 6);
+    close (fd);
+
+    fd = open (fname);
+    r = read (fd, buf, sizeof (buf));
+    close (fd);
+    unlink (fname);
+    if (r == 12 && strncmp (buf, "child parent", 12) == 0) {
+	printf ("...passed\n");
+    } else {
+	printf ("...failed (read %d bytes)\n", r);
+	exit (-1);
+    }
+
+    // the return value from main is used as the status to exit
+    return 0;
+}
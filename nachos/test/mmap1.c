@@ -0,0 +1,74 @@
+/*
+ * mmap1.c
+ *
+ * Simple program for testing mmap and munmap.  It maps a file that
+ * spans two pages, changes a byte on each page through the map,
+ * unmaps it, and reads the file back to check that the changes were
+ * written to it.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILESIZE 1536
+
+char buf[FILESIZE];
+
+int
+main (int argc, char *argv[])
+{
+    char *fname = "mmap1.dat";
+    char *map;
+    int fd, i, r;
+
+    for (i = 0; i < FILESIZE; i++)
+	buf[i] = 'a' + i % 26;
+
+    fd = creat (fname);
+    if (fd < 0) {
+	printf ("...failed to create %s (fd = %d)\n", fname, fd);
+	exit (-1);
+    }
+    write (fd, buf, FILESIZE);
+
+    printf ("mapping %s...\n", fname);
+    map = (char *) mmap (fd, 0, FILESIZE);
+    if (map == (char *) -1) {
+	printf ("...failed\n");
+	exit (-1);
+    }
+    // the map keeps the file open
+    close (fd);
+
+    if (map[0] != 'a' || map[1100] != buf[1100]) {
+	printf ("...failed (map does not hold the file)\n");
+	exit (-1);
+    }
+    printf ("...passed (map at 0x%x)\n", (int) map);
+
+    printf ("changing and unmapping...\n");
+    map[0] = 'X';
+    map[1100] = 'Y';
+    r = munmap (map);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("reading %s back...\n", fname);
+    fd = open (fname);
+    r = read (fd, buf, FILESIZE);
+    close (fd);
+    unlink (fname);
+    if (r != FILESIZE || buf[0] != 'X' || buf[1100] != 'Y'
+	|| buf[1] != 'b' || buf[1101] != 'a' + 1101 % 26) {
+	printf ("...failed (read %d bytes)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    // the return value from main is used as the status to exit
+    return 0;
+}
@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
+#define syscallDup		15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +56,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -108,7 +111,22 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
-/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
+/**
+ * Create a new child process running a copy of the current process. The child
+ * has a new unique process ID and the same file descriptors, which refer to
+ * the same open files and share their file positions. It starts by
+ * returning from fork() as the parent does. Memory is copied lazily: each
+ * page is shared until one of the two processes writes to it.
+ *
+ * Returns the child's process ID in the parent, and 0 in the child. The child
+ * can be joined like one started with exec(). On error, returns -1.
+ *
+ * fork() is not supported with demand paging: under VMProcess it always
+ * returns -1.
+ */
+int fork();
+
+/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, dup, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
  * disk or to a stream (such as console input, console output, and network
@@ -190,6 +208,15 @@ int write(int fileDescriptor, void *buffer, int count);
  */
 int close(int fileDescriptor);
 
+/**
+ * Return a new file descriptor, the lowest one not in use, referring to the
+ * same file or stream as fileDescriptor. The two descriptors share the file
+ * position, and the file stays open until both are closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
 /**
  * Delete a file from the file system. 
  *
@@ -204,18 +231,27 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map length bytes of the file referenced by fileDescriptor, starting at
+ * offset, into memory. offset must be a multiple of the page size, and the
+ * mapped bytes must lie within the file. The kernel places the map at the
+ * lowest free page-aligned address above the program.
+ *
+ * Pages of the map are read from the file when they are first touched. The
+ * map keeps its own reference to the file, so fileDescriptor may be closed
+ * while the map remains. When the map is removed by munmap() or when the
+ * process exits, every page that was changed is written back to the file.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Returns the address of the map on success, or -1 if an error occurred.
+ */
+int mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Remove the map returned by mmap() at address, writing back its changed
+ * pages. The map's addresses may be reused by a later mmap().
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if no file is mapped at address.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -1,13 +1,20 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
-import java.util.Comparator;
-
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Sleeping threads are kept in a hierarchical timer wheel. Time is divided
+ * into slots of <tt>Stats.TimerTicks</tt> ticks, about one timer interrupt
+ * each. The first level of the wheel has a bucket for each of the next
+ * <tt>wheelSize</tt> slots. Each further level has buckets that are
+ * <tt>wheelSize</tt> times as wide, and a bucket is emptied into the levels
+ * below once the wheel reaches it. Setting and cancelling a timer therefore
+ * take constant time, and a timer interrupt only looks at the threads that
+ * are due.
  */
 public class Alarm {
 	/**
@@ -18,6 +25,8 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
+		currentSlot = Machine.timer().getTime() / Stats.TimerTicks;
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -27,23 +36,44 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every thread
+	 * whose timer has expired, then causes the current thread to yield if
+	 * there is another thread that could run.
 	 */
 	public void timerInterrupt() {
-		
 		boolean intStatus = Machine.interrupt().disable();
-		while(!pq.isEmpty() && pq.peek().wakeTime <= Machine.timer().getTime()){
-				//cancel the timer
-				cancel(pq.peek());
-				//place the thread back on ready queue
-				pq.poll().ready();
-					
-		}	
+
+		long time = Machine.timer().getTime();
+		long slot = time / Stats.TimerTicks;
+
+		if (numTimers == 0)
+			currentSlot = Math.max(currentSlot, slot);
+
+		// every thread in a slot that has passed is due
+		while (currentSlot < slot) {
+			int bucket = (int) (currentSlot & wheelMask);
+			while (buckets[bucket] != null)
+				wake(buckets[bucket]);
+
+			currentSlot++;
+			cascade();
+		}
+
+		// the current slot may still hold threads due later in the slot
+		KThread thread = buckets[(int) (currentSlot & wheelMask)];
+		while (thread != null) {
+			KThread next = thread.timerNext;
+			if (thread.wakeTime <= time)
+				wake(thread);
+			thread = next;
+		}
+
+		boolean yield = KThread.anyReady();
+
 		Machine.interrupt().restore(intStatus);
-		//System.out.println("Current Thread line is: " + KThread.currentThread().getName());
-		KThread.currentThread().yield();	
+
+		if (yield)
+			KThread.yield();
 	}
 
 	/**
@@ -59,46 +89,136 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
+		if (x <= 0)
+			return;
+
 		boolean intStatus = Machine.interrupt().disable();
 
-		if(x > 0){
-			long wakeTime = Machine.timer().getTime() + x;
-			KThread.currentThread().wakeTime = wakeTime; 
-			pq.add(KThread.currentThread());
-			KThread.sleep();
-		}
+		KThread thread = KThread.currentThread();
+		thread.wakeTime = Machine.timer().getTime() + x;
+		add(thread);
+
+		KThread.sleep();
+
 		Machine.interrupt().restore(intStatus);
-		
-		/*
-		while (wakeTime > Machine.timer().getTime())
-			KThread.yield();
-		*/
 	}
 
-        /**
-	 * Cancel any timer set by <i>thread</i>, effectively waking
-	 * up the thread immediately (placing it in the scheduler
-	 * ready set) and returning true.  If <i>thread</i> has no
-	 * timer set, return false.
+	/**
+	 * Cancel any timer set by <i>thread</i>, effectively waking up the thread
+	 * immediately (placing it in the scheduler ready set) and returning true.
+	 * If <i>thread</i> has no timer set, return false.
 	 * 
-	 * <p>
 	 * @param thread the thread whose timer should be cancelled.
+	 * @return <tt>true</tt> if <i>thread</i> had a timer set.
 	 */
-  public boolean cancel(KThread thread) {
-		if(thread.wakeTime == 0){
-			return true;
-		}
+	public boolean cancel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean set = (thread.timerBucket >= 0);
+		if (set)
+			wake(thread);
+
+		Machine.interrupt().restore(intStatus);
+		return set;
+	}
+
+	/**
+	 * Put a thread into the bucket for its wake time.
+	 * 
+	 * @param thread the thread to add.
+	 */
+	private void add(KThread thread) {
+		Lib.assertTrue(thread.timerBucket < 0);
+
+		long slot = Math.max(thread.wakeTime / Stats.TimerTicks, currentSlot);
+		long distance = slot - currentSlot;
+
+		int level = 0;
+		while (level < wheelLevels - 1
+				&& distance >= 1L << (wheelBits * (level + 1)))
+			level++;
+
+		// timers beyond the last level wait in its farthest bucket
+		if (distance >= 1L << (wheelBits * wheelLevels))
+			slot = currentSlot + (1L << (wheelBits * wheelLevels)) - 1;
+
+		int bucket = level * wheelSize
+				+ (int) ((slot >> (wheelBits * level)) & wheelMask);
+
+		thread.timerBucket = bucket;
+		thread.timerPrev = null;
+		thread.timerNext = buckets[bucket];
+		if (thread.timerNext != null)
+			thread.timerNext.timerPrev = thread;
+		buckets[bucket] = thread;
+
+		numTimers++;
+	}
+
+	/**
+	 * Take a thread out of its bucket.
+	 * 
+	 * @param thread the thread to remove.
+	 */
+	private void remove(KThread thread) {
+		if (thread.timerPrev == null)
+			buckets[thread.timerBucket] = thread.timerNext;
+		else
+			thread.timerPrev.timerNext = thread.timerNext;
+
+		if (thread.timerNext != null)
+			thread.timerNext.timerPrev = thread.timerPrev;
+
+		thread.timerPrev = thread.timerNext = null;
+		thread.timerBucket = -1;
+
+		numTimers--;
+	}
+
+	private void wake(KThread thread) {
+		remove(thread);
 		thread.wakeTime = 0;
-		
-		return false;
+		thread.ready();
 	}
-	
-	public PriorityQueue<KThread> pq = new PriorityQueue<KThread>(10, new Comparator<KThread>() {
-    public int compare(KThread k1, KThread k2) {
-				return (int) (k1.wakeTime -  k2.wakeTime);
-    }
-});
+
+	/**
+	 * Called each time the wheel moves on to a new slot. Whenever a level
+	 * completes a turn, empty the bucket of the next level that covers the
+	 * new slot into the levels below.
+	 */
+	private void cascade() {
+		for (int level = 1; level < wheelLevels; level++) {
+			if (((currentSlot >> (wheelBits * (level - 1))) & wheelMask) != 0)
+				break;
+
+			int bucket = level * wheelSize
+					+ (int) ((currentSlot >> (wheelBits * level)) & wheelMask);
+
+			KThread thread = buckets[bucket];
+			while (thread != null) {
+				KThread next = thread.timerNext;
+				remove(thread);
+				add(thread);
+				thread = next;
+			}
+		}
+	}
+
+	private static final int wheelBits = 6;
+
+	private static final int wheelSize = 1 << wheelBits;
+
+	private static final int wheelMask = wheelSize - 1;
+
+	private static final int wheelLevels = 4;
+
+	/** The first thread in each bucket, level by level. */
+	private KThread[] buckets = new KThread[wheelLevels * wheelSize];
+
+	/** The slot that the first level of the wheel is at. */
+	private long currentSlot;
+
+	private int numTimers = 0;
 
  public static void alarmTest1() {
 	int durations[] = {1000, 10*1000, 100*1000};
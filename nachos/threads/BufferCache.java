@@ -0,0 +1,696 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/**
+ * A file system that keeps recently used blocks of the files of another file
+ * system in memory. Every file transfer on the underlying file system costs
+ * the same whatever its size, so reads and writes that hit the cache are free,
+ * and the cache makes as few, large transfers as it can.
+ *
+ * <p>
+ * Files are cached in blocks of <tt>BufferCache.blockSize</tt> bytes. Blocks
+ * are replaced with the 2Q algorithm (Johnson and Shasha, "2Q: A Low Overhead
+ * High Performance Buffer Management Replacement Algorithm"): a block read for
+ * the first time goes in a FIFO queue holding up to a quarter of the cache, so
+ * that a scan through a large file does not flush the cache; a block that is
+ * read again after it has left that queue goes in the main LRU list.
+ *
+ * <p>
+ * A miss by a handle that has been reading a file sequentially also fetches up
+ * to <tt>BufferCache.readAhead</tt> blocks after it, in the same transfer.
+ * Writes only change blocks in the cache. A flusher thread writes dirty blocks
+ * back <tt>BufferCache.writeDelay</tt> ticks after the first of them is
+ * written, each run of consecutive dirty blocks of a file in one transfer, so
+ * that small appends to a file cost one transfer between them.
+ */
+public class BufferCache implements FileSystem {
+	/**
+	 * Allocate a new buffer cache, and start its flusher thread.
+	 *
+	 * @param fileSystem the file system whose files are cached.
+	 * @param numBlocks the number of blocks to cache.
+	 */
+	public BufferCache(FileSystem fileSystem, int numBlocks) {
+		this.fileSystem = fileSystem;
+		this.numBlocks = numBlocks;
+
+		blockSize = Config.getInteger("BufferCache.blockSize", 1024);
+		writeDelay = Config.getInteger("BufferCache.writeDelay", 10000);
+		Lib.assertTrue(numBlocks > 0 && blockSize > 0 && writeDelay > 0);
+
+		// a transfer must leave some of the cache for everybody else
+		maxReadAhead = Math.min(Config.getInteger("BufferCache.readAhead", 8),
+				numBlocks / 4);
+		maxIn = Math.max(numBlocks / 4, 1);
+		maxOut = Math.max(numBlocks / 2, 1);
+
+		lock = new Lock();
+		blockDone = new Condition(lock);
+		dirtied = new Condition(lock);
+
+		new KThread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}).setName("flusher").fork();
+	}
+
+	/**
+	 * Return the file system whose files are cached, for files that should
+	 * not be.
+	 *
+	 * @return the underlying file system.
+	 */
+	public FileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	/**
+	 * Open a file. A file that is already open needs no transfer to open again,
+	 * and its cached blocks are shared by every handle on it.
+	 */
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+
+		CachedFile file = files.get(name);
+		if (file != null && file.backing != null && !truncate) {
+			file.users++;
+			openCount++;
+			lock.release();
+			return new CachedOpenFile(file);
+		}
+
+		// nobody may see the old contents once the file is truncated
+		if (truncate && file != null)
+			discard(file);
+		else
+			lock.release();
+
+		OpenFile backing = fileSystem.open(name, truncate);
+
+		if (!truncate || file == null)
+			lock.acquire();
+
+		if (backing == null) {
+			lock.release();
+			return null;
+		}
+
+		file = files.get(name);
+		if (file == null) {
+			file = new CachedFile(name, backing.length());
+			files.put(name, file);
+		}
+		else if (truncate) {
+			file.length = 0;
+		}
+
+		if (file.backing == null)
+			file.backing = backing;
+		else
+			backing.close();
+
+		file.users++;
+		openCount++;
+
+		lock.release();
+		return new CachedOpenFile(file);
+	}
+
+	/**
+	 * Remove a file, discarding its cached blocks. Handles still open on it
+	 * keep working on the blocks they bring in.
+	 */
+	public boolean remove(String name) {
+		lock.acquire();
+
+		CachedFile file = files.remove(name);
+		if (file != null) {
+			discard(file);
+			file.removed = true;
+			closeIfIdle(file);
+		}
+
+		boolean removed = fileSystem.remove(name);
+
+		lock.release();
+		return removed;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Write every dirty block back to its file.
+	 */
+	public void sync() {
+		lock.acquire();
+
+		while (!dirtyFiles.isEmpty())
+			flushFile(dirtyFiles.iterator().next());
+
+		lock.release();
+	}
+
+	private int read(CachedOpenFile handle, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || offset < 0 || length < 0 || offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+
+		CachedFile file = handle.file;
+		int end = (int) Math.min((long) pos + length, file.length);
+		int amount = 0;
+
+		while (pos + amount < end) {
+			int position = pos + amount;
+			int index = position / blockSize;
+
+			boolean sequential = (index == handle.nextBlock || index == handle.nextBlock - 1);
+			Block block = getBlock(file, index, sequential);
+			if (block == null)
+				break;
+
+			int blockOffset = position % blockSize;
+			int count = Math.min(blockSize - blockOffset, end - position);
+			System.arraycopy(block.data, blockOffset, buf, offset + amount,
+					count);
+
+			amount += count;
+			handle.nextBlock = index + 1;
+		}
+
+		lock.release();
+		return (amount == 0 && pos < end) ? -1 : amount;
+	}
+
+	private int write(CachedOpenFile handle, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || offset < 0 || length < 0 || offset + length > buf.length
+				|| pos + length < 0)
+			return -1;
+
+		lock.acquire();
+
+		CachedFile file = handle.file;
+		int amount = 0;
+
+		while (amount < length) {
+			int position = pos + amount;
+			int index = position / blockSize;
+			int blockOffset = position % blockSize;
+			int count = Math.min(blockSize - blockOffset, length - amount);
+
+			// a block whose old contents are all overwritten need not be read
+			int blockStart = index * blockSize;
+			boolean overwritten = blockStart >= file.length
+					|| (blockOffset == 0 && blockStart + count >= file.length);
+
+			Block block = file.blocks.get(index);
+			if (block == null && overwritten) {
+				makeRoom();
+				block = file.blocks.get(index);
+				if (block == null) {
+					block = insert(file, index);
+					Arrays.fill(block.data, (byte) 0);
+					block.valid = true;
+				}
+			}
+
+			block = getBlock(file, index, false);
+			if (block == null)
+				break;
+
+			System.arraycopy(buf, offset + amount, block.data, blockOffset,
+					count);
+
+			if (!block.dirty) {
+				block.dirty = true;
+				file.dirty.add(index);
+				numDirty++;
+				if (dirtyFiles.add(file) && dirtyFiles.size() == 1)
+					dirtied.wake();
+			}
+
+			amount += count;
+			file.length = Math.max(file.length, position + count);
+		}
+
+		lock.release();
+		return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	/**
+	 * Return a cached block of a file, reading it in if it is not cached.
+	 * The caller must hold <tt>lock</tt>, which is released while waiting.
+	 *
+	 * @return the block, or <tt>null</tt> if it could not be read.
+	 */
+	private Block getBlock(CachedFile file, int index, boolean sequential) {
+		while (true) {
+			Block block = file.blocks.get(index);
+			if (block == null) {
+				if (!load(file, index, sequential ? maxReadAhead + 1 : 1))
+					return null;
+				continue;
+			}
+
+			if (!block.valid) {
+				blockDone.sleep();
+				continue;
+			}
+
+			if (main.containsKey(block.key))
+				main.get(block.key);
+
+			return block;
+		}
+	}
+
+	/**
+	 * Read a block of a file, and up to <tt>count - 1</tt> blocks after it
+	 * that are not cached, in one transfer.
+	 *
+	 * @return <tt>false</tt> if the read failed.
+	 */
+	private boolean load(CachedFile file, int index, int count) {
+		int lastIndex = Math.max(file.length - 1, 0) / blockSize;
+		ArrayList<Block> run = new ArrayList<Block>();
+
+		for (int i = index; i < index + count && i <= lastIndex; i++) {
+			makeRoom();
+			if (file.blocks.containsKey(i))
+				break;
+
+			Block block = insert(file, i);
+			block.busy++;
+			file.numBusy++;
+			run.add(block);
+		}
+
+		if (run.isEmpty())
+			return true;
+
+		Lib.debug(dbgCache, "reading blocks " + index + " to "
+				+ (index + run.size() - 1) + " of " + file.name);
+
+		byte[] buffer = (run.size() == 1) ? run.get(0).data
+				: new byte[run.size() * blockSize];
+
+		lock.release();
+		int amount = file.backing.read(index * blockSize, buffer, 0,
+				buffer.length);
+		lock.acquire();
+
+		for (int i = 0; i < run.size(); i++) {
+			Block block = run.get(i);
+			block.busy--;
+			file.numBusy--;
+
+			if (amount < 0) {
+				evict(block);
+				continue;
+			}
+
+			if (buffer != block.data)
+				System.arraycopy(buffer, i * blockSize, block.data, 0, blockSize);
+
+			// the part of the block past the end of the file reads as zeros
+			int valid = Math.min(Math.max(amount - i * blockSize, 0), blockSize);
+			Arrays.fill(block.data, valid, blockSize, (byte) 0);
+			block.valid = true;
+		}
+
+		blockDone.wakeAll();
+		return amount >= 0;
+	}
+
+	/**
+	 * Add a new, invalid block to the cache, which must have room for it.
+	 */
+	private Block insert(CachedFile file, int index) {
+		Block block = new Block(file, index, (freeData != null) ? freeData
+				: new byte[blockSize]);
+		freeData = null;
+
+		file.blocks.put(index, block);
+		numCached++;
+
+		// a block referenced again soon after it left the FIFO is hot
+		if (out.remove(block.key) != null)
+			main.put(block.key, block);
+		else
+			in.put(block.key, block);
+
+		return block;
+	}
+
+	/**
+	 * Evict blocks until there is room for another. The caller must hold
+	 * <tt>lock</tt>, which is released while dirty blocks are written.
+	 */
+	private void makeRoom() {
+		while (numCached >= numBlocks) {
+			Block victim = chooseVictim();
+			if (victim == null)
+				blockDone.sleep();
+			else if (victim.dirty)
+				flushRun(victim.file, victim.index);
+			else
+				evict(victim);
+		}
+	}
+
+	/**
+	 * Return the block 2Q would evict: the oldest block in the FIFO once it is
+	 * over its share of the cache, and the least recently used one in the main
+	 * list otherwise. Blocks being transferred are passed over.
+	 */
+	private Block chooseVictim() {
+		boolean fromIn = in.size() > maxIn || main.isEmpty();
+
+		Block victim = firstIdle(fromIn ? in : main);
+		if (victim == null)
+			victim = firstIdle(fromIn ? main : in);
+
+		return victim;
+	}
+
+	private static Block firstIdle(LinkedHashMap<Long, Block> list) {
+		for (Block block : list.values()) {
+			if (block.busy == 0)
+				return block;
+		}
+
+		return null;
+	}
+
+	private void evict(Block block) {
+		block.file.blocks.remove(block.index);
+		numCached--;
+
+		if (block.dirty) {
+			block.file.dirty.remove(block.index);
+			numDirty--;
+			if (block.file.dirty.isEmpty())
+				dirtyFiles.remove(block.file);
+		}
+
+		if (in.remove(block.key) != null) {
+			out.put(block.key, true);
+			if (out.size() > maxOut) {
+				Iterator<Long> i = out.keySet().iterator();
+				i.next();
+				i.remove();
+			}
+		}
+		else {
+			main.remove(block.key);
+		}
+
+		if (block.valid)
+			freeData = block.data;
+	}
+
+	/**
+	 * Drop every cached block of a file, once no transfer is using them.
+	 */
+	private void discard(CachedFile file) {
+		while (file.numBusy > 0)
+			blockDone.sleep();
+
+		for (Block block : new ArrayList<Block>(file.blocks.values()))
+			evict(block);
+	}
+
+	/**
+	 * Write every dirty block of a file back to it.
+	 */
+	private void flushFile(CachedFile file) {
+		while (!file.dirty.isEmpty())
+			flushRun(file, file.dirty.first());
+	}
+
+	/**
+	 * Write back a dirty block of a file, with the dirty blocks around it, in
+	 * one transfer. If the block is already being written, wait for that
+	 * instead.
+	 */
+	private void flushRun(CachedFile file, int index) {
+		if (file.blocks.get(index).busy > 0) {
+			blockDone.sleep();
+			return;
+		}
+
+		int first = index, last = index;
+		while (isFlushable(file, first - 1))
+			first--;
+		while (isFlushable(file, last + 1))
+			last++;
+
+		int start = first * blockSize;
+		int end = Math.min((last + 1) * blockSize, file.length);
+		byte[] buffer = new byte[end - start];
+
+		for (int i = first; i <= last; i++) {
+			Block block = file.blocks.get(i);
+			System.arraycopy(block.data, 0, buffer, (i - first) * blockSize,
+					Math.min(blockSize, end - i * blockSize));
+
+			// a write while this one is in progress dirties the block again
+			block.dirty = false;
+			block.busy++;
+			file.numBusy++;
+			file.dirty.remove(i);
+			numDirty--;
+		}
+
+		if (file.dirty.isEmpty())
+			dirtyFiles.remove(file);
+
+		Lib.debug(dbgCache, "writing blocks " + first + " to " + last + " of "
+				+ file.name);
+
+		if (!file.removed) {
+			OpenFile backing = file.backing;
+
+			lock.release();
+			backing.write(start, buffer, 0, buffer.length);
+			lock.acquire();
+		}
+
+		for (int i = first; i <= last; i++) {
+			file.blocks.get(i).busy--;
+			file.numBusy--;
+		}
+
+		blockDone.wakeAll();
+		closeIfIdle(file);
+	}
+
+	private boolean isFlushable(CachedFile file, int index) {
+		Block block = file.blocks.get(index);
+		return block != null && block.dirty && block.busy == 0;
+	}
+
+	/**
+	 * Close the cache's handle on a file once nobody has it open and it has
+	 * nothing left to write. Its clean blocks stay cached for the next open.
+	 */
+	private void closeIfIdle(CachedFile file) {
+		if (file.users > 0 || !file.dirty.isEmpty() || file.numBusy > 0)
+			return;
+
+		if (file.backing != null) {
+			file.backing.close();
+			file.backing = null;
+		}
+
+		// nobody can open a removed file again to use its blocks
+		if (file.removed)
+			discard(file);
+	}
+
+	/**
+	 * Write dirty blocks back some time after they are first written, so that
+	 * writes close together are written back together.
+	 */
+	private void flushLoop() {
+		lock.acquire();
+
+		while (true) {
+			while (dirtyFiles.isEmpty())
+				dirtied.sleep();
+
+			lock.release();
+			ThreadedKernel.alarm.waitUntil(writeDelay);
+			lock.acquire();
+
+			while (!dirtyFiles.isEmpty())
+				flushFile(dirtyFiles.iterator().next());
+		}
+	}
+
+	/**
+	 * A file with blocks in the cache, shared by every handle open on it.
+	 */
+	private class CachedFile {
+		CachedFile(String name, int length) {
+			this.name = name;
+			this.length = length;
+
+			id = nextFileID++;
+		}
+
+		String name;
+
+		int id;
+
+		/**
+		 * The length of the file, counting writes not yet written back.
+		 */
+		int length;
+
+		/** The number of handles open on the file. */
+		int users = 0;
+
+		/**
+		 * The cache's own handle on the underlying file, kept while the file
+		 * is open or has dirty blocks.
+		 */
+		OpenFile backing = null;
+
+		boolean removed = false;
+
+		HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+
+		/** The indices of the dirty blocks, in order. */
+		TreeSet<Integer> dirty = new TreeSet<Integer>();
+
+		/** The number of blocks being transferred. */
+		int numBusy = 0;
+	}
+
+	private static class Block {
+		Block(CachedFile file, int index, byte[] data) {
+			this.file = file;
+			this.index = index;
+			this.data = data;
+
+			key = ((long) file.id << 32) | index;
+		}
+
+		CachedFile file;
+
+		int index;
+
+		/** Identifies the block in the 2Q lists, even after its file is gone. */
+		long key;
+
+		byte[] data;
+
+		/** Whether <tt>data</tt> has been read in. */
+		boolean valid = false;
+
+		boolean dirty = false;
+
+		/** The number of transfers in progress on the block. */
+		int busy = 0;
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(BufferCache.this, file.name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return BufferCache.this.read(this, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			return BufferCache.this.write(this, pos, buf, offset, length);
+		}
+
+		public int length() {
+			return (file == null) ? -1 : file.length;
+		}
+
+		public void close() {
+			if (file == null)
+				return;
+
+			lock.acquire();
+			file.users--;
+			openCount--;
+			closeIfIdle(file);
+			lock.release();
+
+			file = null;
+		}
+
+		private CachedFile file;
+
+		/** The block after the last one read, to detect sequential reads. */
+		private int nextBlock = 0;
+	}
+
+	private FileSystem fileSystem;
+
+	private int numBlocks, blockSize, writeDelay, maxReadAhead;
+
+	/** The most blocks in the FIFO, and ghosts of blocks evicted from it. */
+	private int maxIn, maxOut;
+
+	/** Protects everything in the cache but the contents of blocks. */
+	private Lock lock;
+
+	/** Signalled when a transfer of blocks finishes. */
+	private Condition blockDone;
+
+	/** Signalled when the first block is dirtied, to start the flusher. */
+	private Condition dirtied;
+
+	/** The files that have been opened, by name. */
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/** The files with dirty blocks, in the order they were first dirtied. */
+	private LinkedHashSet<CachedFile> dirtyFiles = new LinkedHashSet<CachedFile>();
+
+	/** The 2Q FIFO of blocks referenced once, oldest first. */
+	private LinkedHashMap<Long, Block> in = new LinkedHashMap<Long, Block>();
+
+	/** The 2Q main list of blocks, least recently used first. */
+	private LinkedHashMap<Long, Block> main = new LinkedHashMap<Long, Block>(
+			16, 0.75f, true);
+
+	/** The keys of blocks recently evicted from the FIFO, oldest first. */
+	private LinkedHashMap<Long, Boolean> out = new LinkedHashMap<Long, Boolean>();
+
+	private int numCached = 0, numDirty = 0, openCount = 0;
+
+	/** The data array of the last block evicted, to reuse. */
+	private byte[] freeData = null;
+
+	private int nextFileID = 0;
+
+	private static final char dbgCache = 'f';
+}
@@ -1,7 +1,9 @@
 package nachos.threads;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Map;
 import nachos.machine.*;
 
 /**
@@ -23,7 +25,7 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		this.waitQueue = new LinkedList<KThread>(); 
+		this.waitQueue = new LinkedHashMap<KThread, Boolean>(); 
 	}
 
 	/**
@@ -39,7 +41,7 @@ public class Condition2 {
 		//would disable context switching, achieving atomicity
 		boolean intStatus = Machine.interrupt().disable();
 
-		waitQueue.add(KThread.currentThread());
+		waitQueue.put(KThread.currentThread(), false);
 	
 		conditionLock.release();
 		KThread.currentThread().sleep();
@@ -57,16 +59,21 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
 		boolean intStatus = Machine.interrupt().disable();
-		//if waitqueue is not empty
-		if(!waitQueue.isEmpty()){
-			//wake up one element from the waitqueue
-			
-			if(waitQueue.peek().wakeTime != 0){
-				ThreadedKernel.alarm.cancel(waitQueue.peek());
-			}else{
-				waitQueue.poll().ready();
+		//wake up the thread that has waited longest
+		Iterator<Map.Entry<KThread, Boolean>> i = waitQueue.entrySet().iterator();
+		while(i.hasNext()){
+			Map.Entry<KThread, Boolean> waiter = i.next();
+			i.remove();
+
+			if(!waiter.getValue()){
+				waiter.getKey().ready();
+				break;
+			}
+			//a thread in sleepFor() is woken by cancelling its timer, unless
+			//its timeout has already elapsed and it is no longer waiting
+			if(ThreadedKernel.alarm.cancel(waiter.getKey())){
+				break;
 			}
-		
 		}	
 		Machine.interrupt().restore(intStatus);
 	
@@ -100,11 +107,16 @@ public class Condition2 {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		KThread thread = KThread.currentThread();
+		waitQueue.put(thread, true);
+
 		conditionLock.release();
 
-		waitQueue.add(KThread.currentThread());
 		ThreadedKernel.alarm.waitUntil(timeout);
 
+		//if the timeout elapsed, nobody took us off the wait queue
+		waitQueue.remove(thread);
+
 		conditionLock.acquire();
 
 		Machine.interrupt().restore(intStatus);
@@ -112,7 +124,9 @@ public class Condition2 {
 
         private Lock conditionLock;
 				//need to initalize condition lock 
-				private Queue<KThread> waitQueue; 
+				//waiting threads in arrival order, each mapped to whether it is in
+				//sleepFor(), and removable in constant time when it times out
+				private LinkedHashMap<KThread, Boolean> waitQueue; 
 
 
 
@@ -244,6 +244,19 @@ public class KThread {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Test whether any thread is waiting in the ready queue, that is, whether
+	 * <tt>yield()</tt> could switch to a thread other than the current one.
+	 * Interrupts must be disabled.
+	 * 
+	 * @return <tt>true</tt> if some thread is ready to run.
+	 */
+	static boolean anyReady() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numReady > 0;
+	}
+
 	/**
 	 * Relinquish the CPU, because the current thread has either finished or it
 	 * is blocked. This thread must be the current thread.
@@ -277,8 +290,10 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -342,8 +357,16 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			// only the idle thread can run until the next interrupt
+			if (currentThread == idleThread)
+				Machine.interrupt().idle();
+
 			nextThread = idleThread;
+		}
+		else {
+			numReady--;
+		}
 
 		nextThread.run();
 	}
@@ -513,6 +536,9 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads waiting in <tt>readyQueue</tt>. */
+	private static int numReady = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
@@ -523,6 +549,14 @@ public class KThread {
 
 	public long wakeTime = 0; 
 
+	/**
+	 * The links and bucket of this thread in the alarm's timer wheel, or a
+	 * bucket of -1 if this thread has no timer set.
+	 */
+	KThread timerPrev = null, timerNext = null;
+
+	int timerBucket = -1;
+
 	public boolean alreadyJoined = false;
 
 	
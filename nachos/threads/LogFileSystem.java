@@ -0,0 +1,1277 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A log-structured file system on the machine's disk, after Rosenblum and
+ * Ousterhout, "The Design and Implementation of a Log-Structured File System".
+ * To use it, set <tt>Machine.disk</tt> to <tt>true</tt> and
+ * <tt>ThreadedKernel.fileSystem</tt> to <tt>nachos.threads.LogFileSystem</tt>.
+ *
+ * <p>
+ * The disk is divided into segments of one track each, after a track or more
+ * holding two checkpoint regions. Every block the file system writes, whether
+ * it holds file data, an indirect block or inodes, is appended to the
+ * segment being filled in memory, and a segment goes to the disk in a single
+ * write once it is full. Small writes to any number of files, from any number
+ * of processes, thus reach the disk as large sequential writes. The first
+ * sector of each segment is its summary, which names the file and block each
+ * of its blocks belongs to.
+ *
+ * <p>
+ * An inode map, kept in memory, gives the location of every inode in the
+ * log. A checkpoint writes every dirty inode and indirect block to the log,
+ * and then the inode map and the number of live blocks in each segment to
+ * the older of the two checkpoint regions. Checkpoints are taken every
+ * <tt>LogFileSystem.checkpointInterval</tt> segments, and by
+ * <tt>sync()</tt>, which the kernel calls when it terminates; after a crash,
+ * the file system comes back as of the last checkpoint.
+ *
+ * <p>
+ * A cleaner thread keeps free segments available. When fewer than a tenth of
+ * the segments are free, it picks segments with the cost-benefit policy,
+ * which favours segments with few live blocks that have not changed for a
+ * long time, reads each of them in one transfer, and appends its live blocks
+ * to the log. A cleaned segment is free once the next checkpoint no longer
+ * refers to it. The work done by the cleaner, and the ratio of sectors
+ * written to the disk to bytes written to files, are kept in
+ * <tt>Stats</tt>.
+ *
+ * <p>
+ * Files are named in a single directory, which is itself the file with inode
+ * 0. Unless <tt>LogFileSystem.import</tt> is <tt>false</tt>, a file that is
+ * not in the file system the first time it is opened after booting is copied
+ * from the stub file system, if the machine has one, so that executables can
+ * be run as usual.
+ */
+public class LogFileSystem implements FileSystem {
+	/**
+	 * Allocate a new log-structured file system on the kernel's disk. The disk
+	 * is not read until the file system is first used, once threads are
+	 * running.
+	 */
+	public LogFileSystem() {
+		Lib.assertTrue(ThreadedKernel.disk != null,
+				"LogFileSystem needs Machine.disk = true");
+
+		disk = ThreadedKernel.disk;
+
+		maxFiles = Config.getInteger("LogFileSystem.maxFiles", 256);
+		checkpointInterval = Config.getInteger(
+				"LogFileSystem.checkpointInterval", 16);
+		Lib.assertTrue(maxFiles > 1 && checkpointInterval > 0);
+
+		if (Config.getBoolean("LogFileSystem.import", true))
+			importFrom = Machine.stubFileSystem();
+
+		// the summary must fit in one sector
+		segmentSectors = Math.min(Machine.disk().getSectorsPerTrack(),
+				(blockSize / 4 - 1) / 2 + 1);
+		segmentBlocks = segmentSectors - 1;
+		Lib.assertTrue(segmentBlocks > 0);
+
+		int numSectors = disk.getNumSectors();
+		checkpointSectors = Lib.divRoundUp((checkpointHeader + maxFiles + 2
+				* (numSectors / segmentSectors)) * 4, blockSize);
+		firstSegmentSector = Lib.divRoundUp(2 * checkpointSectors,
+				segmentSectors) * segmentSectors;
+		numSegments = (numSectors - firstSegmentSector) / segmentSectors;
+		reserve = Math.max(numSegments / 16, 2);
+		minFree = reserve;
+		Lib.assertTrue(numSegments > reserve + 1, "disk too small for the log");
+
+		minGain = Math.max(segmentBlocks / 4, 1);
+		lowWater = Math.max(numSegments / 10, reserve + 2);
+		highWater = Math.max(numSegments / 5, lowWater + 2);
+
+		imap = new int[maxFiles];
+		live = new int[numSegments];
+		age = new int[numSegments];
+		free = new boolean[numSegments];
+		cleaned = new boolean[numSegments];
+		segment = new byte[segmentSectors * blockSize];
+
+		lock = new Lock();
+		segmentFreed = new Condition(lock);
+		needClean = new Condition(lock);
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		mount();
+
+		// a file about to be truncated need not be imported
+		if (truncate)
+			looked.add(name);
+
+		Inode inode = lookup(name);
+		if (inode == null) {
+			if (!truncate || (inode = allocateInode()) == null) {
+				lock.release();
+				return null;
+			}
+
+			directory.put(name, inode.inum);
+			directoryDirty = true;
+		}
+		else if (truncate) {
+			truncate(inode, 0);
+		}
+
+		inode.users++;
+		openCount++;
+
+		finish();
+		lock.release();
+
+		return new LogOpenFile(name, inode);
+	}
+
+	/**
+	 * Remove a file. Handles already open on it can still use it, and its
+	 * blocks are freed when the last of them is closed.
+	 */
+	public boolean remove(String name) {
+		lock.acquire();
+		mount();
+
+		looked.add(name);
+
+		Integer inum = directory.remove(name);
+		if (inum != null) {
+			directoryDirty = true;
+
+			Inode inode = getInode(inum);
+			inode.removed = true;
+			if (inode.users == 0)
+				freeInode(inode);
+		}
+
+		finish();
+		lock.release();
+
+		return inum != null;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Take a checkpoint, so that everything written so far survives a crash.
+	 */
+	public void sync() {
+		lock.acquire();
+		mount();
+		checkpoint();
+		lock.release();
+	}
+
+	/**
+	 * Read the latest checkpoint, or format the disk if it has none, and start
+	 * the cleaner. The caller must hold <tt>lock</tt>.
+	 */
+	private void mount() {
+		if (mounted)
+			return;
+
+		mounted = true;
+
+		byte[][] regions = new byte[2][checkpointSectors * blockSize];
+		int latest = -1;
+		for (int i = 0; i < 2; i++) {
+			disk.read(i * checkpointSectors, checkpointSectors, regions[i], 0);
+
+			if (getInt(regions[i], 0) == checkpointMagic
+					&& getInt(regions[i], 3) == maxFiles
+					&& getInt(regions[i], 4) == numSegments
+					&& (latest < 0 || getInt(regions[i], 1) > getInt(
+							regions[latest], 1)))
+				latest = i;
+		}
+
+		if (latest < 0) {
+			Lib.debug(dbgLog, "formatting the disk: " + numSegments
+					+ " segments of " + segmentBlocks + " blocks");
+
+			Arrays.fill(imap, -1);
+			Arrays.fill(free, true);
+			for (int s = 0; s < numSegments; s++)
+				freeSegments.add(s);
+
+			Inode root = new Inode(0);
+			inodes.put(0, root);
+			markDirty(root);
+
+			directoryDirty = true;
+			checkpoint();
+		}
+		else {
+			byte[] region = regions[latest];
+
+			checkpointSeq = getInt(region, 1);
+			writeSeq = getInt(region, 2);
+			nextRegion = 1 - latest;
+
+			for (int i = 0; i < maxFiles; i++)
+				imap[i] = getInt(region, checkpointHeader + i);
+			for (int s = 0; s < numSegments; s++) {
+				live[s] = getInt(region, checkpointHeader + maxFiles + s);
+				age[s] = getInt(region, checkpointHeader + maxFiles
+						+ numSegments + s);
+				if (live[s] == 0) {
+					free[s] = true;
+					freeSegments.add(s);
+				}
+			}
+
+			for (int i = 0; i < maxFiles; i++) {
+				if (imap[i] >= 0)
+					addInodeRef(imap[i] / inodesPerBlock);
+			}
+
+			readDirectory();
+
+			Lib.debug(dbgLog, "mounted checkpoint " + checkpointSeq + ": "
+					+ directory.size() + " files, " + freeSegments.size()
+					+ " free segments");
+		}
+
+		new KThread(new Runnable() {
+			public void run() {
+				cleanerLoop();
+			}
+		}).setName("cleaner").fork();
+	}
+
+	/**
+	 * Finish an operation, taking a checkpoint if one is due and waking the
+	 * cleaner if free segments are running low. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private void finish() {
+		if (segmentsSinceCheckpoint >= checkpointInterval)
+			checkpoint();
+
+		if (freeSegments.size() < lowWater && !diskFull)
+			needClean.wake();
+	}
+
+	/**
+	 * Return the inode of a file, importing the file if it has never been
+	 * looked up. The caller must hold <tt>lock</tt>.
+	 *
+	 * @return the inode, or <tt>null</tt> if there is no such file.
+	 */
+	private Inode lookup(String name) {
+		Integer inum = directory.get(name);
+		if (inum != null)
+			return getInode(inum);
+
+		if (importFrom == null || !looked.add(name))
+			return null;
+
+		OpenFile source = importFrom.open(name, false);
+		if (source == null)
+			return null;
+
+		byte[] contents = new byte[source.length()];
+		int amount = source.read(0, contents, 0, contents.length);
+		source.close();
+
+		Inode inode = allocateInode();
+		if (inode == null)
+			return null;
+
+		directory.put(name, inode.inum);
+		directoryDirty = true;
+
+		if (amount > 0)
+			writeFile(inode, 0, contents, 0, amount);
+
+		Lib.debug(dbgLog, "imported " + name + " (" + amount + " bytes)");
+		return inode;
+	}
+
+	private int read(Inode inode, int pos, byte[] buf, int offset, int length) {
+		lock.acquire();
+		int amount = readFile(inode, pos, buf, offset, length);
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Read from a file. The caller must hold <tt>lock</tt>.
+	 */
+	private int readFile(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		int end = (int) Math.min((long) pos + length, inode.length);
+		int amount = 0;
+
+		while (pos + amount < end) {
+			int position = pos + amount;
+			int index = position / blockSize;
+			int lastIndex = (end - 1) / blockSize;
+
+			// blocks written together are read together
+			int addr = inode.getBlock(index);
+			int count = 1;
+			if (addr >= 0 && !inSegment(addr)) {
+				while (index + count <= lastIndex && count < segmentSectors
+						&& inode.getBlock(index + count) == addr + count
+						&& !inSegment(addr + count))
+					count++;
+			}
+
+			byte[] data = new byte[count * blockSize];
+			readBlocks(addr, count, data);
+
+			int blockOffset = position % blockSize;
+			int bytes = Math.min(count * blockSize - blockOffset, end - position);
+			System.arraycopy(data, blockOffset, buf, offset + amount, bytes);
+
+			amount += bytes;
+		}
+
+		return amount;
+	}
+
+	private int write(Inode inode, int pos, byte[] buf, int offset, int length) {
+		lock.acquire();
+
+		int amount = writeFile(inode, pos, buf, offset, length);
+		Machine.stats().numLogBytesWritten += amount;
+
+		finish();
+		lock.release();
+
+		return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	/**
+	 * Write to a file through the log. The caller must hold <tt>lock</tt>,
+	 * which is released while waiting for the cleaner.
+	 *
+	 * @return the number of bytes written, which is less than
+	 * <tt>length</tt> if the disk is full.
+	 */
+	private int writeFile(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		byte[] data = new byte[blockSize];
+		int amount = 0;
+
+		while (amount < length) {
+			int position = pos + amount;
+			int index = position / blockSize;
+			int blockOffset = position % blockSize;
+			int count = Math.min(blockSize - blockOffset, length - amount);
+
+			if (index >= maxBlocks || !openSegment())
+				break;
+
+			// nothing can move while the block is changed
+			int old = inode.getBlock(index);
+			if (count < blockSize)
+				readBlocks(old, 1, data);
+			System.arraycopy(buf, offset + amount, data, blockOffset, count);
+
+			setBlock(inode, index, place(data, 0, inode.inum, index, old));
+
+			amount += count;
+			if (position + count > inode.length) {
+				inode.length = position + count;
+				markDirty(inode);
+			}
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Shrink a file. The caller must hold <tt>lock</tt>.
+	 */
+	private void truncate(Inode inode, int length) {
+		int numBlocks = Lib.divRoundUp(length, blockSize);
+		for (int i = numBlocks; i < inode.map.length; i++) {
+			if (inode.map[i] >= 0) {
+				kill(inode.map[i]);
+				setBlock(inode, i, -1);
+			}
+		}
+
+		inode.map = Arrays.copyOf(inode.map, Math.min(inode.map.length,
+				numBlocks));
+		inode.length = length;
+		markDirty(inode);
+	}
+
+	/**
+	 * Read consecutive blocks, from the segment being filled if they are in
+	 * it. A negative address reads a block of zeros.
+	 */
+	private void readBlocks(int addr, int count, byte[] data) {
+		if (addr < 0) {
+			Arrays.fill(data, 0, count * blockSize, (byte) 0);
+		}
+		else if (inSegment(addr)) {
+			System.arraycopy(segment, (addr - segmentStart(current))
+					* blockSize, data, 0, count * blockSize);
+		}
+		else {
+			disk.read(addr, count, data, 0);
+		}
+	}
+
+	/**
+	 * Put a block in the log in place of an older version of it, which is
+	 * overwritten if it has not yet been written to the disk.
+	 *
+	 * @return the address of the block, or <tt>-1</tt> if the log is full.
+	 */
+	private int place(byte[] data, int offset, int inum, int index, int old) {
+		if (old >= 0 && inSegment(old)
+				&& old - segmentStart(current) > written) {
+			System.arraycopy(data, offset, segment, (old - segmentStart(current))
+					* blockSize, blockSize);
+			return old;
+		}
+
+		int addr = append(data, offset, inum, index);
+		kill(old);
+		return addr;
+	}
+
+	/**
+	 * Append a block to the segment being filled, starting a new segment if
+	 * it is full.
+	 *
+	 * @return the address of the block, or <tt>-1</tt> if the log is full.
+	 */
+	private int append(byte[] data, int offset, int inum, int index) {
+		if (!openSegment())
+			return -1;
+
+		int slot = fill++;
+		System.arraycopy(data, offset, segment, (slot + 1) * blockSize,
+				blockSize);
+		putInt(segment, 1 + 2 * slot, inum);
+		putInt(segment, 2 + 2 * slot, index);
+
+		live[current]++;
+		changed = true;
+		return segmentStart(current) + 1 + slot;
+	}
+
+	/**
+	 * Make sure the segment being filled has room for a block, leaving
+	 * <tt>minFree</tt> segments free. Writers wait for the cleaner to free
+	 * segments; the cleaner and checkpoints never wait.
+	 *
+	 * @return <tt>false</tt> if the log is full.
+	 */
+	private boolean openSegment() {
+		while (true) {
+			if (current >= 0 && fill == segmentBlocks) {
+				writeSegment();
+				current = -1;
+			}
+
+			// the rest of the segment being filled counts against minFree too
+			if (current >= 0 && freeSegments.size() >= minFree)
+				return true;
+
+			if (current < 0 && freeSegments.size() > minFree) {
+				current = freeSegments.removeFirst();
+				free[current] = false;
+				fill = written = 0;
+				return true;
+			}
+
+			if (minFree < reserve || diskFull)
+				return false;
+
+			needClean.wake();
+			segmentFreed.sleep();
+		}
+	}
+
+	/**
+	 * Write the blocks of the segment being filled that are not yet on the
+	 * disk, and its summary.
+	 */
+	private void writeSegment() {
+		if (fill == written)
+			return;
+
+		putInt(segment, 0, fill);
+
+		int start = segmentStart(current);
+		if (written == 0) {
+			disk.write(start, 1 + fill, segment, 0);
+		}
+		else {
+			disk.write(start, 1, segment, 0);
+			disk.write(start + 1 + written, fill - written, segment,
+					(1 + written) * blockSize);
+		}
+
+		Lib.debug(dbgLog, "wrote segment " + current + " blocks " + written
+				+ " to " + (fill - 1));
+
+		written = fill;
+		age[current] = ++writeSeq;
+		segmentsSinceCheckpoint++;
+		Machine.stats().numSegmentWrites++;
+	}
+
+	/**
+	 * Account for a block that is no longer part of any file.
+	 */
+	private void kill(int addr) {
+		if (addr < 0)
+			return;
+
+		int s = segmentOf(addr);
+		live[s]--;
+		Lib.assertTrue(live[s] >= 0);
+
+		changed = true;
+		diskFull = false;
+	}
+
+	private boolean inSegment(int addr) {
+		return current >= 0 && segmentOf(addr) == current;
+	}
+
+	private int segmentStart(int s) {
+		return firstSegmentSector + s * segmentSectors;
+	}
+
+	private int segmentOf(int addr) {
+		return (addr - firstSegmentSector) / segmentSectors;
+	}
+
+	/**
+	 * Write every dirty inode and indirect block, the segment being filled,
+	 * and then the inode map and segment usage to a checkpoint region. Frees
+	 * every segment with no live blocks. The caller must hold <tt>lock</tt>.
+	 */
+	private void checkpoint() {
+		if (!changed && !directoryDirty && dirtyInodes.isEmpty())
+			return;
+
+		int wasFree = minFree;
+		minFree = 0;
+
+		if (directoryDirty)
+			writeDirectory();
+
+		writeMetadata();
+
+		if (current >= 0)
+			writeSegment();
+
+		minFree = wasFree;
+
+		byte[] region = new byte[checkpointSectors * blockSize];
+		putInt(region, 0, checkpointMagic);
+		putInt(region, 1, ++checkpointSeq);
+		putInt(region, 2, writeSeq);
+		putInt(region, 3, maxFiles);
+		putInt(region, 4, numSegments);
+		for (int i = 0; i < maxFiles; i++)
+			putInt(region, checkpointHeader + i, imap[i]);
+		for (int s = 0; s < numSegments; s++) {
+			putInt(region, checkpointHeader + maxFiles + s, live[s]);
+			putInt(region, checkpointHeader + maxFiles + numSegments + s, age[s]);
+		}
+
+		disk.write(nextRegion * checkpointSectors, checkpointSectors, region, 0);
+		nextRegion = 1 - nextRegion;
+		segmentsSinceCheckpoint = 0;
+		changed = false;
+
+		// nothing on the disk refers to an empty segment any more
+		for (int s = 0; s < numSegments; s++) {
+			Lib.assertTrue(!cleaned[s] || live[s] == 0);
+			cleaned[s] = false;
+
+			if (!free[s] && s != current && live[s] == 0) {
+				free[s] = true;
+				freeSegments.add(s);
+			}
+		}
+
+		Lib.debug(dbgLog, "checkpoint " + checkpointSeq + ": "
+				+ freeSegments.size() + " free segments");
+
+		segmentFreed.wakeAll();
+	}
+
+	/**
+	 * Write the indirect blocks and inodes of every dirty inode to the log,
+	 * packing the inodes into as few blocks as possible.
+	 */
+	private void writeMetadata() {
+		ArrayList<Inode> pending = new ArrayList<Inode>();
+
+		for (Inode inode : dirtyInodes) {
+			for (int k = 0; k < pointersPerBlock; k++) {
+				if (inode.childDirty[k]) {
+					inode.childDirty[k] = false;
+
+					int old = inode.children[k];
+					inode.children[k] = writePointers(inode, inode.map,
+							numDirect + pointersPerBlock * (k + 1),
+							indexChild - k, old);
+					if (inode.children[k] != old)
+						inode.doubleDirty = true;
+				}
+			}
+
+			if (inode.doubleDirty) {
+				inode.doubleDirty = false;
+
+				int old = inode.doubleIndirect;
+				inode.doubleIndirect = writePointers(inode, inode.children, 0,
+						indexDouble, old);
+				if (inode.doubleIndirect != old)
+					inode.dirty = true;
+			}
+
+			if (inode.singleDirty) {
+				inode.singleDirty = false;
+
+				int old = inode.singleIndirect;
+				inode.singleIndirect = writePointers(inode, inode.map,
+						numDirect, indexSingle, old);
+				if (inode.singleIndirect != old)
+					inode.dirty = true;
+			}
+
+			if (inode.dirty)
+				pending.add(inode);
+		}
+
+		dirtyInodes.clear();
+
+		byte[] data = new byte[blockSize];
+		for (int first = 0; first < pending.size(); first += inodesPerBlock) {
+			int count = Math.min(inodesPerBlock, pending.size() - first);
+
+			Arrays.fill(data, (byte) -1);
+			for (int r = 0; r < count; r++)
+				pending.get(first + r).store(data, r * inodeSize / 4);
+
+			int addr = append(data, 0, -1, 0);
+			Lib.assertTrue(addr >= 0, "log full");
+
+			for (int r = 0; r < count; r++) {
+				Inode inode = pending.get(first + r);
+				releaseInodeSlot(imap[inode.inum]);
+				imap[inode.inum] = addr * inodesPerBlock + r;
+				addInodeRef(addr);
+				inode.dirty = false;
+			}
+		}
+	}
+
+	/**
+	 * Write a block of pointers to the log, or free it if they are all empty.
+	 *
+	 * @return the new address of the block, or <tt>-1</tt> if it was freed.
+	 */
+	private int writePointers(Inode inode, int[] pointers, int first,
+			int index, int old) {
+		byte[] data = new byte[blockSize];
+		boolean empty = true;
+
+		for (int i = 0; i < pointersPerBlock; i++) {
+			int pointer = (first + i < pointers.length) ? pointers[first + i]
+					: -1;
+			putInt(data, i, pointer);
+			empty &= (pointer < 0);
+		}
+
+		if (empty) {
+			kill(old);
+			return -1;
+		}
+
+		int addr = place(data, 0, inode.inum, index, old);
+		Lib.assertTrue(addr >= 0, "log full");
+		return addr;
+	}
+
+	private void addInodeRef(int addr) {
+		Integer refs = inodeBlockRefs.get(addr);
+		inodeBlockRefs.put(addr, (refs == null) ? 1 : refs + 1);
+	}
+
+	/**
+	 * Give up an inode's old place in the log; the block holding it dies with
+	 * the last inode in it.
+	 */
+	private void releaseInodeSlot(int location) {
+		if (location < 0)
+			return;
+
+		int addr = location / inodesPerBlock;
+		int refs = inodeBlockRefs.get(addr) - 1;
+		if (refs > 0) {
+			inodeBlockRefs.put(addr, refs);
+		}
+		else {
+			inodeBlockRefs.remove(addr);
+			kill(addr);
+		}
+	}
+
+	/**
+	 * Return an inode, reading it and its indirect blocks from the log if it
+	 * is not in memory.
+	 *
+	 * @return the inode, or <tt>null</tt> if it is not in use.
+	 */
+	private Inode getInode(int inum) {
+		Inode inode = inodes.get(inum);
+		if (inode != null || imap[inum] < 0)
+			return inode;
+
+		byte[] data = new byte[blockSize];
+		readBlocks(imap[inum] / inodesPerBlock, 1, data);
+
+		inode = new Inode(inum);
+		int base = (imap[inum] % inodesPerBlock) * inodeSize / 4;
+		Lib.assertTrue(getInt(data, base) == inum);
+
+		inode.length = getInt(data, base + 1);
+		inode.map = new int[Lib.divRoundUp(inode.length, blockSize)];
+		Arrays.fill(inode.map, -1);
+
+		for (int i = 0; i < numDirect && i < inode.map.length; i++)
+			inode.map[i] = getInt(data, base + 2 + i);
+
+		inode.singleIndirect = getInt(data, base + 2 + numDirect);
+		inode.doubleIndirect = getInt(data, base + 3 + numDirect);
+
+		readPointers(inode.singleIndirect, inode.map, numDirect);
+		readPointers(inode.doubleIndirect, inode.children, 0);
+		for (int k = 0; k < pointersPerBlock; k++)
+			readPointers(inode.children[k], inode.map, numDirect
+					+ pointersPerBlock * (k + 1));
+
+		inodes.put(inum, inode);
+		return inode;
+	}
+
+	private void readPointers(int addr, int[] pointers, int first) {
+		if (addr < 0 || first >= pointers.length)
+			return;
+
+		byte[] data = new byte[blockSize];
+		readBlocks(addr, 1, data);
+
+		for (int i = 0; i < pointersPerBlock && first + i < pointers.length; i++)
+			pointers[first + i] = getInt(data, i);
+	}
+
+	/**
+	 * Return a new, empty inode, or <tt>null</tt> if there are none left.
+	 */
+	private Inode allocateInode() {
+		for (int inum = 1; inum < maxFiles; inum++) {
+			if (imap[inum] < 0 && !inodes.containsKey(inum)) {
+				Inode inode = new Inode(inum);
+				inodes.put(inum, inode);
+				markDirty(inode);
+				return inode;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Free an inode and every block of its file.
+	 */
+	private void freeInode(Inode inode) {
+		for (int i = 0; i < inode.map.length; i++)
+			kill(inode.map[i]);
+
+		kill(inode.singleIndirect);
+		kill(inode.doubleIndirect);
+		for (int k = 0; k < pointersPerBlock; k++)
+			kill(inode.children[k]);
+
+		releaseInodeSlot(imap[inode.inum]);
+		imap[inode.inum] = -1;
+
+		inodes.remove(inode.inum);
+		dirtyInodes.remove(inode);
+	}
+
+	/**
+	 * Change the address of a block of a file, and mark the inode or indirect
+	 * block holding it dirty.
+	 */
+	private void setBlock(Inode inode, int index, int addr) {
+		if (index >= inode.map.length) {
+			int length = inode.map.length;
+			inode.map = Arrays.copyOf(inode.map, Math.max(index + 1, 2 * length));
+			Arrays.fill(inode.map, length, inode.map.length, -1);
+		}
+
+		inode.map[index] = addr;
+
+		if (index < numDirect)
+			inode.dirty = true;
+		else if (index < numDirect + pointersPerBlock)
+			inode.singleDirty = true;
+		else
+			inode.childDirty[(index - numDirect) / pointersPerBlock - 1] = true;
+
+		dirtyInodes.add(inode);
+	}
+
+	private void markDirty(Inode inode) {
+		inode.dirty = true;
+		dirtyInodes.add(inode);
+	}
+
+	private void readDirectory() {
+		Inode root = getInode(0);
+		byte[] data = new byte[root.length];
+		Lib.assertTrue(readFile(root, 0, data, 0, data.length) == data.length);
+
+		for (int pos = 0; pos < data.length;) {
+			int inum = Lib.bytesToInt(data, pos);
+			int length = Lib.bytesToInt(data, pos + 4);
+			directory.put(new String(data, pos + 8, length), inum);
+			pos += 8 + length;
+		}
+	}
+
+	private void writeDirectory() {
+		int size = 0;
+		for (String name : directory.keySet())
+			size += 8 + name.getBytes().length;
+
+		byte[] data = new byte[size];
+		int pos = 0;
+		for (Map.Entry<String, Integer> entry : directory.entrySet()) {
+			byte[] name = entry.getKey().getBytes();
+			Lib.bytesFromInt(data, pos, entry.getValue());
+			Lib.bytesFromInt(data, pos + 4, name.length);
+			System.arraycopy(name, 0, data, pos + 8, name.length);
+			pos += 8 + name.length;
+		}
+
+		Inode root = getInode(0);
+		Lib.assertTrue(writeFile(root, 0, data, 0, size) == size, "log full");
+		truncate(root, size);
+
+		directoryDirty = false;
+	}
+
+	private void cleanerLoop() {
+		lock.acquire();
+
+		while (true) {
+			while (diskFull || freeSegments.size() >= lowWater)
+				needClean.sleep();
+
+			clean();
+		}
+	}
+
+	/**
+	 * Clean segments until enough of them will be free, and take a
+	 * checkpoint to free them. If this frees nothing, the disk is full.
+	 */
+	private void clean() {
+		int before = freeSegments.size();
+
+		int numCleaned = 0;
+		while (freeSegments.size() + numCleaned < highWater) {
+			// free what has been cleaned while there is room to checkpoint
+			if (freeSegments.size() <= 1) {
+				int previous = freeSegments.size();
+				if (numCleaned == 0)
+					break;
+
+				checkpoint();
+				numCleaned = 0;
+				if (freeSegments.size() <= previous)
+					break;
+
+				continue;
+			}
+
+			int victim = chooseVictim();
+			if (victim < 0 || !cleanSegment(victim))
+				break;
+
+			numCleaned++;
+		}
+
+		checkpoint();
+
+		if (freeSegments.size() <= before)
+			diskFull = true;
+
+		segmentFreed.wakeAll();
+	}
+
+	/**
+	 * Return the segment that is most worth cleaning, by the ratio of the
+	 * space it would free, weighted by its age, to the cost of cleaning it.
+	 *
+	 * @return the segment, or <tt>-1</tt> if no segment has free space.
+	 */
+	private int chooseVictim() {
+		int victim = -1;
+		double best = 0;
+
+		for (int s = 0; s < numSegments; s++) {
+			// cleaning a nearly full segment costs more than it frees
+			if (free[s] || cleaned[s] || s == current
+					|| live[s] > segmentBlocks - minGain)
+				continue;
+
+			double u = (double) live[s] / segmentBlocks;
+			double benefit = (1 - u) * (writeSeq - age[s] + 1) / (1 + u);
+			if (benefit > best) {
+				best = benefit;
+				victim = s;
+			}
+		}
+
+		return victim;
+	}
+
+	/**
+	 * Move the live blocks of a segment to the end of the log. Inodes and
+	 * indirect blocks are only marked dirty, to be written by the next
+	 * checkpoint.
+	 *
+	 * @return <tt>false</tt> if the log filled up.
+	 */
+	private boolean cleanSegment(int victim) {
+		minFree = 1;
+		boolean moved = moveLiveBlocks(victim);
+		minFree = reserve;
+
+		if (moved)
+			cleaned[victim] = true;
+
+		return moved;
+	}
+
+	private boolean moveLiveBlocks(int victim) {
+		int start = segmentStart(victim);
+
+		Lib.debug(dbgLog, "cleaning segment " + victim + " (" + live[victim]
+				+ " live blocks)");
+
+		byte[] data = new byte[segmentSectors * blockSize];
+		if (live[victim] > 0) {
+			disk.read(start, segmentSectors, data, 0);
+			// a block is one sector
+			Machine.stats().numCleanerReads += segmentSectors;
+		}
+
+		int count = (live[victim] > 0) ? getInt(data, 0) : 0;
+		for (int slot = 0; slot < count && live[victim] > 0; slot++) {
+			int addr = start + 1 + slot;
+			int inum = getInt(data, 1 + 2 * slot);
+			int index = getInt(data, 2 + 2 * slot);
+
+			if (inum < 0) {
+				boolean anyLive = false;
+				for (int r = 0; r < inodesPerBlock; r++) {
+					int rInum = getInt(data, (slot + 1) * blockSize / 4 + r
+							* inodeSize / 4);
+					if (rInum >= 0 && imap[rInum] == addr * inodesPerBlock + r) {
+						markDirty(getInode(rInum));
+						anyLive = true;
+					}
+				}
+				if (anyLive)
+					Machine.stats().numCleanerWrites++;
+				continue;
+			}
+
+			Inode inode = getInode(inum);
+			if (inode == null)
+				continue;
+
+			if (index >= 0) {
+				if (inode.getBlock(index) == addr) {
+					int moved = place(data, (slot + 1) * blockSize, inum, index,
+							addr);
+					if (moved < 0)
+						return false;
+
+					setBlock(inode, index, moved);
+					Machine.stats().numCleanerWrites++;
+				}
+			}
+			else if (index == indexSingle) {
+				if (inode.singleIndirect == addr) {
+					inode.singleDirty = true;
+					dirtyInodes.add(inode);
+					Machine.stats().numCleanerWrites++;
+				}
+			}
+			else if (index == indexDouble) {
+				if (inode.doubleIndirect == addr) {
+					inode.doubleDirty = true;
+					dirtyInodes.add(inode);
+					Machine.stats().numCleanerWrites++;
+				}
+			}
+			else {
+				int k = indexChild - index;
+				if (inode.children[k] == addr) {
+					inode.childDirty[k] = true;
+					dirtyInodes.add(inode);
+					Machine.stats().numCleanerWrites++;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private static int getInt(byte[] data, int word) {
+		return Lib.bytesToInt(data, word * 4);
+	}
+
+	private static void putInt(byte[] data, int word, int value) {
+		Lib.bytesFromInt(data, word * 4, value);
+	}
+
+	/**
+	 * An inode, holding the length of a file and the addresses of its blocks.
+	 * In memory, the addresses of all of its blocks are kept in one array; in
+	 * the log, the first <tt>numDirect</tt> are in the inode, the next
+	 * <tt>pointersPerBlock</tt> in a single indirect block, and the rest in the
+	 * children of a double indirect block.
+	 */
+	private class Inode {
+		Inode(int inum) {
+			this.inum = inum;
+
+			Arrays.fill(children, -1);
+		}
+
+		int getBlock(int index) {
+			return (index < map.length) ? map[index] : -1;
+		}
+
+		/**
+		 * Store this inode in a block of inodes.
+		 */
+		void store(byte[] data, int base) {
+			putInt(data, base, inum);
+			putInt(data, base + 1, length);
+			for (int i = 0; i < numDirect; i++)
+				putInt(data, base + 2 + i, getBlock(i));
+			putInt(data, base + 2 + numDirect, singleIndirect);
+			putInt(data, base + 3 + numDirect, doubleIndirect);
+		}
+
+		int inum;
+
+		int length = 0;
+
+		/** The address of every block of the file, or -1 for a hole. */
+		int[] map = new int[0];
+
+		int singleIndirect = -1, doubleIndirect = -1;
+
+		/** The addresses of the children of the double indirect block. */
+		int[] children = new int[pointersPerBlock];
+
+		/** Whether the inode itself must be written. */
+		boolean dirty = false;
+
+		boolean singleDirty = false, doubleDirty = false;
+
+		boolean[] childDirty = new boolean[pointersPerBlock];
+
+		/** The number of handles open on the file. */
+		int users = 0;
+
+		boolean removed = false;
+	}
+
+	private class LogOpenFile extends OpenFileWithPosition {
+		LogOpenFile(String name, Inode inode) {
+			super(LogFileSystem.this, name);
+
+			this.inode = inode;
+		}
+
+		public int length() {
+			if (inode == null)
+				return -1;
+
+			return inode.length;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || offset < 0 || length < 0
+					|| offset + length > buf.length)
+				return -1;
+
+			return LogFileSystem.this.read(inode, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || offset < 0 || length < 0
+					|| offset + length > buf.length || pos + length < 0)
+				return -1;
+
+			return LogFileSystem.this.write(inode, pos, buf, offset, length);
+		}
+
+		public void close() {
+			if (inode == null)
+				return;
+
+			lock.acquire();
+
+			openCount--;
+			if (--inode.users == 0 && inode.removed)
+				freeInode(inode);
+
+			lock.release();
+
+			inode = null;
+		}
+
+		private Inode inode;
+	}
+
+	private static final int blockSize = Disk.sectorSize;
+
+	private static final int pointersPerBlock = blockSize / 4;
+
+	private static final int numDirect = 12;
+
+	private static final int maxBlocks = numDirect + pointersPerBlock
+			+ pointersPerBlock * pointersPerBlock;
+
+	/** The size of an inode in the log: its number, length and pointers. */
+	private static final int inodeSize = (4 + numDirect) * 4;
+
+	private static final int inodesPerBlock = blockSize / inodeSize;
+
+	/**
+	 * The block numbers in segment summaries of indirect blocks; the children
+	 * of the double indirect block count down from <tt>indexChild</tt>.
+	 */
+	private static final int indexSingle = -1, indexDouble = -2,
+			indexChild = -3;
+
+	private static final int checkpointMagic = 0x4C4F4721;
+
+	/** The number of words in a checkpoint before the inode map. */
+	private static final int checkpointHeader = 5;
+
+	/**
+	 * The number of free segments writers leave for the cleaner, which
+	 * leaves the last for checkpoints.
+	 */
+	private int reserve;
+
+	private SynchDisk disk;
+
+	private int maxFiles, checkpointInterval;
+
+	private int segmentSectors, segmentBlocks, numSegments;
+
+	private int checkpointSectors, firstSegmentSector;
+
+	/** The fewest dead blocks that make a segment worth cleaning. */
+	private int minGain;
+
+	/** The cleaner runs below <tt>lowWater</tt> free segments. */
+	private int lowWater, highWater;
+
+	/** Protects everything in the file system. */
+	private Lock lock;
+
+	/** Signalled when segments are freed, or the disk is found full. */
+	private Condition segmentFreed;
+
+	private Condition needClean;
+
+	private boolean mounted = false;
+
+	/** The number of free segments the current operation must leave. */
+	private int minFree;
+
+	/** Whether cleaning last freed nothing. */
+	private boolean diskFull = false;
+
+	/** The location of each inode: its block times inodesPerBlock + slot. */
+	private int[] imap;
+
+	/** The number of live blocks in each segment. */
+	private int[] live;
+
+	/** The value of <tt>writeSeq</tt> when each segment was last written. */
+	private int[] age;
+
+	private boolean[] free, cleaned;
+
+	private LinkedList<Integer> freeSegments = new LinkedList<Integer>();
+
+	/** The number of current inodes in each block of inodes. */
+	private HashMap<Integer, Integer> inodeBlockRefs = new HashMap<Integer, Integer>();
+
+	private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+
+	private LinkedHashSet<Inode> dirtyInodes = new LinkedHashSet<Inode>();
+
+	private HashMap<String, Integer> directory = new HashMap<String, Integer>();
+
+	private boolean directoryDirty = false;
+
+	/** Whether any block has been written or freed since the checkpoint. */
+	private boolean changed = false;
+
+	/** The segment being filled, or -1. */
+	private int current = -1;
+
+	private byte[] segment;
+
+	/** The number of blocks in the segment, and how many are on the disk. */
+	private int fill = 0, written = 0;
+
+	private int writeSeq = 0, checkpointSeq = 0, nextRegion = 0;
+
+	private int segmentsSinceCheckpoint = 0;
+
+	/** The file system to import files from, or <tt>null</tt>. */
+	private FileSystem importFrom = null;
+
+	/** The names that have been looked up since booting. */
+	private HashSet<String> looked = new HashSet<String>();
+
+	private int openCount = 0;
+
+	private static final char dbgLog = 'l';
+}
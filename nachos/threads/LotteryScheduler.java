@@ -41,7 +41,392 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
 	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot in a Fenwick tree of effective ticket
+	 * counts, so drawing the winner, adding or removing a thread, and changing
+	 * the tickets of a waiting thread all take time logarithmic in the number
+	 * of slots.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			setOwner(null);
+
+			if (numWaiting == 0)
+				return null;
+
+			LotteryState next = slots[findSlot((long) (Lib.random() * totalTickets))];
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 1; i <= capacity; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ");
+			}
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, taking back the
+		 * tickets transferred to the previous owner and transferring them to
+		 * the new one.
+		 * 
+		 * @param newOwner the new owner, or <tt>null</tt> if this queue is
+		 * no longer owned.
+		 */
+		void setOwner(LotteryState newOwner) {
+			if (transferPriority && totalTickets != 0) {
+				if (owner != null)
+					owner.transfer(-totalTickets);
+				if (newOwner != null)
+					newOwner.transfer(totalTickets);
+			}
+
+			owner = newOwner;
+		}
+
+		/**
+		 * Give a thread a slot in this queue, transferring its tickets to the
+		 * owner.
+		 * 
+		 * @param state the thread to add.
+		 */
+		void add(LotteryState state) {
+			if (numFree == 0)
+				grow();
+
+			state.slot = freeSlots[--numFree];
+			slots[state.slot] = state;
+			numWaiting++;
+
+			LotteryState to = adjust(state, state.effectiveTickets);
+			if (to != null)
+				to.transfer(state.effectiveTickets);
+		}
+
+		/**
+		 * Take a thread's slot in this queue away, along with the tickets it
+		 * transferred to the owner.
+		 * 
+		 * @param state the thread to remove.
+		 */
+		void remove(LotteryState state) {
+			LotteryState to = adjust(state, -state.effectiveTickets);
+			if (to != null)
+				to.transfer(-state.effectiveTickets);
+
+			slots[state.slot] = null;
+			freeSlots[numFree++] = state.slot;
+			numWaiting--;
+
+			state.slot = 0;
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Add to the tickets of a waiting thread, and to those this queue
+		 * transfers to its owner.
+		 * 
+		 * @param state the waiting thread.
+		 * @param delta the number of tickets to add.
+		 * @return the owner that the tickets must be passed on to, or
+		 * <tt>null</tt> if they stop here.
+		 */
+		LotteryState adjust(LotteryState state, long delta) {
+			for (int i = state.slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+
+			return transferPriority ? owner : null;
+		}
+
+		/**
+		 * Return the slot holding the specified ticket, counting the tickets
+		 * of each slot in turn.
+		 * 
+		 * @param ticket a ticket, at least 0 and less than the total.
+		 * @return the slot of the thread holding <tt>ticket</tt>.
+		 */
+		private int findSlot(long ticket) {
+			int slot = 0;
+			for (int step = capacity; step > 0; step >>= 1) {
+				if (slot + step <= capacity && tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return slot + 1;
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree in linear time.
+		 */
+		private void grow() {
+			int oldCapacity = capacity;
+			capacity = (capacity == 0) ? 4 : capacity * 2;
+
+			LotteryState[] oldSlots = slots;
+			slots = new LotteryState[capacity + 1];
+			if (oldSlots != null)
+				System.arraycopy(oldSlots, 1, slots, 1, oldCapacity);
+
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				if (slots[i] != null)
+					tree[i] += slots[i].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+
+			freeSlots = new int[capacity];
+			for (int i = capacity; i > oldCapacity; i--)
+				freeSlots[numFree++] = i;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread that currently owns this queue, if any. */
+		private LotteryState owner = null;
+
+		/**
+		 * The waiting threads by slot, and the Fenwick tree of their effective
+		 * tickets. Both are indexed from 1.
+		 */
+		private LotteryState[] slots = null;
+
+		private long[] tree = null;
+
+		private int capacity = 0;
+
+		/** A stack of the unused slots. */
+		private int[] freeSlots = null;
+
+		private int numFree = 0;
+
+		private int numWaiting = 0;
+
+		/** The sum of the effective tickets of all waiting threads. */
+		private long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. The effective
+	 * tickets of a thread are its own tickets plus the tickets transferred to
+	 * it by every queue it owns, that is, the effective tickets of every
+	 * thread waiting on such a queue.
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			tickets = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Set the tickets of the associated thread to the specified value.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = tickets - this.tickets;
+			this.tickets = tickets;
+
+			transfer(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on the specified
+		 * queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 * 
+		 * @see nachos.threads.ThreadQueue#waitForAccess
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @see nachos.threads.ThreadQueue#acquire
+		 * @see nachos.threads.ThreadQueue#nextThread
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitingOn != waitQueue);
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Add to the effective tickets of the associated thread, and pass them
+		 * on along the chain of queues waited on and their owners. A thread
+		 * already visited means the chain is a cycle, which can only be a
+		 * deadlock, so the walk stops there.
+		 * 
+		 * @param delta the number of tickets to add.
+		 */
+		void transfer(long delta) {
+			long mark = ++numTransfers;
+
+			LotteryState state = this;
+			while (delta != 0 && state != null && state.lastTransfer != mark) {
+				state.lastTransfer = mark;
+				state.effectiveTickets += delta;
+
+				if (state.waitingOn == null)
+					break;
+
+				state = state.waitingOn.adjust(state, delta);
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets;
+
+		/** The effective tickets of the associated thread. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitingOn = null;
+
+		/** The slot of the associated thread in <tt>waitingOn</tt>. */
+		private int slot = 0;
+
+		private long lastTransfer = 0;
+	}
+
+	private long numTransfers = 0;
 }
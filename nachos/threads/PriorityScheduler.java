@@ -125,8 +125,40 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * Return the bit that stands for the specified priority in a priority
+	 * bitmap. Higher priorities get lower bits, so the highest priority in a
+	 * bitmap is found with a single <tt>numberOfTrailingZeros()</tt>.
+	 * 
+	 * @param priority the priority.
+	 * @return the bit for <tt>priority</tt>.
+	 */
+	private static int priorityBit(int priority) {
+		return 1 << (priorityMaximum - priority);
+	}
+
+	/**
+	 * Return the highest priority in a priority bitmap.
+	 * 
+	 * @param bitmap a priority bitmap.
+	 * @return the highest priority whose bit is set in <tt>bitmap</tt>, or -1
+	 * if <tt>bitmap</tt> is empty.
+	 */
+	private static int highestPriority(int bitmap) {
+		if (bitmap == 0)
+			return -1;
+
+		return priorityMaximum - Integer.numberOfTrailingZeros(bitmap);
+	}
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one FIFO per effective priority, linked
+	 * through their <tt>ThreadState</tt> objects, and a bitmap records which
+	 * of these FIFOs are non-empty. Choosing the next thread, and finding the
+	 * priority this queue donates to its owner, therefore take constant time.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +177,17 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			setOwner(null);
+
+			ThreadState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +197,118 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (occupied == 0)
+				return null;
+
+			return heads[highestPriority(occupied)];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (ThreadState s = heads[p]; s != null; s = s.next)
+					System.out.print(s.thread + " ");
+			}
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, taking back the
+		 * priority donated to the previous owner and donating it to the new
+		 * one.
+		 * 
+		 * @param newOwner the new owner, or <tt>null</tt> if this queue is
+		 * no longer owned.
+		 */
+		void setOwner(ThreadState newOwner) {
+			if (transferPriority && donation >= 0) {
+				if (owner != null)
+					owner.changeDonation(donation, -1);
+				if (newOwner != null)
+					newOwner.changeDonation(-1, donation);
+			}
+
+			owner = newOwner;
+		}
+
+		/**
+		 * Add a thread to the back of the FIFO for its effective priority.
+		 * 
+		 * @param state the thread to add.
+		 */
+		void add(ThreadState state) {
+			insert(state, state.effectivePriority);
+			updateDonation();
+		}
+
+		/**
+		 * Remove a thread from this queue.
+		 * 
+		 * @param state the thread to remove.
+		 */
+		void remove(ThreadState state) {
+			unlink(state, state.effectivePriority);
+			state.waitingOn = null;
+			updateDonation();
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to the
+		 * back of the FIFO for its new priority.
+		 * 
+		 * @param state the thread to move.
+		 * @param oldPriority the effective priority it was queued under.
+		 */
+		void reposition(ThreadState state, int oldPriority) {
+			unlink(state, oldPriority);
+			insert(state, state.effectivePriority);
+			updateDonation();
+		}
+
+		private void insert(ThreadState state, int priority) {
+			state.prev = tails[priority];
+			state.next = null;
+
+			if (state.prev == null)
+				heads[priority] = state;
+			else
+				state.prev.next = state;
+			tails[priority] = state;
+
+			occupied |= priorityBit(priority);
+		}
+
+		private void unlink(ThreadState state, int priority) {
+			if (state.prev == null)
+				heads[priority] = state.next;
+			else
+				state.prev.next = state.next;
+
+			if (state.next == null)
+				tails[priority] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			state.prev = state.next = null;
+
+			if (heads[priority] == null)
+				occupied &= ~priorityBit(priority);
+		}
+
+		/**
+		 * Recompute the priority this queue donates and, if it changed, pass
+		 * the change on to the owner.
+		 */
+		private void updateDonation() {
+			int newDonation = highestPriority(occupied);
+			if (newDonation == donation)
+				return;
+
+			int oldDonation = donation;
+			donation = newDonation;
+
+			if (transferPriority && owner != null)
+				owner.changeDonation(oldDonation, newDonation);
 		}
 
 		/**
@@ -170,6 +316,23 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that currently owns this queue, if any. */
+		private ThreadState owner = null;
+
+		/** The first and last waiting thread at each effective priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+
+		/** A priority bitmap of the non-empty FIFOs. */
+		private int occupied = 0;
+
+		/**
+		 * The highest effective priority of any waiting thread, or -1 if no
+		 * thread is waiting.
+		 */
+		private int donation = -1;
 	}
 
 	/**
@@ -177,6 +340,12 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * Rather than a list of the queues it owns, a thread keeps a count of how
+	 * many of them donate each priority. Its effective priority is then the
+	 * larger of its own priority and the highest priority with a non-zero
+	 * count, and is only recomputed when one of these changes.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -207,8 +376,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +390,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +406,10 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
 		}
 
 		/**
@@ -252,7 +423,42 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn != waitQueue);
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Replace one priority donated to the associated thread by another.
+		 * 
+		 * @param oldDonation the priority no longer donated, or -1 if none.
+		 * @param newDonation the priority now donated, or -1 if none.
+		 */
+		void changeDonation(int oldDonation, int newDonation) {
+			if (oldDonation >= 0 && --donations[oldDonation] == 0)
+				donationBits &= ~priorityBit(oldDonation);
+			if (newDonation >= 0 && donations[newDonation]++ == 0)
+				donationBits |= priorityBit(newDonation);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority and, if it changed, move the
+		 * associated thread within the queue it is waiting on. That queue in
+		 * turn passes any change in its donation on to its owner, so a change
+		 * travels along the chain of lock holders only as far as it matters.
+		 */
+		private void updateEffectivePriority() {
+			int effective = Math.max(priority, highestPriority(donationBits));
+			if (effective == effectivePriority)
+				return;
+
+			int oldEffective = effectivePriority;
+			effectivePriority = effective;
+
+			if (waitingOn != null)
+				waitingOn.reposition(this, oldEffective);
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +466,22 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/**
+		 * The number of owned queues donating each priority, and a priority
+		 * bitmap of the non-zero counts.
+		 */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		private int donationBits = 0;
+
+		/** Links to the neighbouring threads in <tt>waitingOn</tt>. */
+		private ThreadState prev = null, next = null;
 	}
 }
@@ -0,0 +1,272 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A file system that keeps its files in memory. Nothing is ever written to the
+ * host, and opening, reading and writing files take no simulated time, so
+ * kernels that only need scratch files run much faster than on the stub file
+ * system, and runs never see each other's files. To use it, set
+ * <tt>ThreadedKernel.fileSystem</tt> to <tt>nachos.threads.RamFileSystem</tt>.
+ *
+ * <p>
+ * A file is held in chunks of <tt>Processor.pageSize</tt> bytes, allocated as
+ * it is written; a chunk that has never been written reads as zeros. Each file
+ * has its own lock, so transfers on different files do not wait for each
+ * other.
+ *
+ * <p>
+ * Unless <tt>RamFileSystem.import</tt> is <tt>false</tt>, a file that is not in
+ * memory the first time it is opened is copied from the stub file system, if
+ * the machine has one, so that executables and test inputs can be run as
+ * usual. Changes are never copied back.
+ */
+public class RamFileSystem implements FileSystem {
+	/**
+	 * Allocate a new, empty RAM file system.
+	 */
+	public RamFileSystem() {
+		if (Config.getBoolean("RamFileSystem.import", true))
+			importFrom = Machine.stubFileSystem();
+
+		lock = new Lock();
+	}
+
+	/**
+	 * Open a file, truncating it if <tt>truncate</tt> is <tt>true</tt>, and
+	 * creating it if it does not exist and <tt>truncate</tt> is <tt>true</tt>.
+	 * Every handle on a file shares its contents.
+	 */
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+
+		RamFile file;
+		if (truncate) {
+			// the file's old contents, if any, are not needed
+			looked.add(name);
+
+			file = files.get(name);
+			if (file == null) {
+				file = new RamFile();
+				files.put(name, file);
+			}
+		}
+		else {
+			file = lookup(name);
+			if (file == null) {
+				lock.release();
+				return null;
+			}
+		}
+
+		openCount++;
+
+		lock.release();
+
+		if (truncate)
+			file.truncate();
+
+		return new RamOpenFile(name, file);
+	}
+
+	/**
+	 * Remove a file. Handles already open on it can still use it, and its
+	 * memory is freed when the last of them is closed.
+	 */
+	public boolean remove(String name) {
+		lock.acquire();
+
+		boolean removed = (files.remove(name) != null);
+		if (importFrom != null && looked.add(name)) {
+			OpenFile source = importFrom.open(name, false);
+			if (source != null) {
+				source.close();
+				removed = true;
+			}
+		}
+
+		lock.release();
+		return removed;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Return a file, importing it if it has never been looked up. The caller
+	 * must hold <tt>lock</tt>.
+	 *
+	 * @param name the name of the file.
+	 * @return the file, or <tt>null</tt> if there is none.
+	 */
+	private RamFile lookup(String name) {
+		RamFile file = files.get(name);
+		if (file != null || importFrom == null || !looked.add(name))
+			return file;
+
+		OpenFile source = importFrom.open(name, false);
+		if (source == null)
+			return null;
+
+		file = new RamFile();
+
+		byte[] contents = new byte[source.length()];
+		int amount = source.read(0, contents, 0, contents.length);
+		if (amount > 0)
+			file.write(0, contents, 0, amount);
+
+		source.close();
+
+		Lib.debug(dbgRam, "imported " + name + " (" + amount + " bytes)");
+
+		files.put(name, file);
+		return file;
+	}
+
+	/**
+	 * The contents of a file, shared by every handle on it.
+	 */
+	private static class RamFile {
+		RamFile() {
+			lock = new Lock();
+		}
+
+		int length() {
+			lock.acquire();
+			int result = length;
+			lock.release();
+
+			return result;
+		}
+
+		void truncate() {
+			lock.acquire();
+			chunks = new byte[0][];
+			length = 0;
+			lock.release();
+		}
+
+		int read(int pos, byte[] buf, int offset, int length) {
+			lock.acquire();
+
+			int amount = Math.max(0, Math.min(length, this.length - pos));
+			for (int i = 0; i < amount;) {
+				int chunk = (pos + i) / chunkSize;
+				int chunkOffset = (pos + i) % chunkSize;
+				int count = Math.min(chunkSize - chunkOffset, amount - i);
+
+				if (chunk < chunks.length && chunks[chunk] != null)
+					System.arraycopy(chunks[chunk], chunkOffset, buf, offset + i,
+							count);
+				else
+					Arrays.fill(buf, offset + i, offset + i + count, (byte) 0);
+
+				i += count;
+			}
+
+			lock.release();
+			return amount;
+		}
+
+		int write(int pos, byte[] buf, int offset, int length) {
+			lock.acquire();
+
+			int lastChunk = (pos + length - 1) / chunkSize;
+			if (length > 0 && lastChunk >= chunks.length)
+				chunks = Arrays.copyOf(chunks, Math.max(lastChunk + 1,
+						chunks.length * 2));
+
+			for (int i = 0; i < length;) {
+				int chunk = (pos + i) / chunkSize;
+				int chunkOffset = (pos + i) % chunkSize;
+				int count = Math.min(chunkSize - chunkOffset, length - i);
+
+				if (chunks[chunk] == null)
+					chunks[chunk] = new byte[chunkSize];
+				System.arraycopy(buf, offset + i, chunks[chunk], chunkOffset,
+						count);
+
+				i += count;
+			}
+
+			this.length = Math.max(this.length, pos + length);
+
+			lock.release();
+			return length;
+		}
+
+		/** Protects the contents and length of this file. */
+		private Lock lock;
+
+		/** The file's contents; a <tt>null</tt> chunk holds zeros. */
+		private byte[][] chunks = new byte[0][];
+
+		private int length = 0;
+	}
+
+	private class RamOpenFile extends OpenFileWithPosition {
+		RamOpenFile(String name, RamFile file) {
+			super(RamFileSystem.this, name);
+
+			this.file = file;
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+
+			return file.length();
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || offset < 0 || length < 0
+					|| offset + length > buf.length)
+				return -1;
+
+			return file.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || offset < 0 || length < 0
+					|| offset + length > buf.length || pos + length < 0)
+				return -1;
+
+			return file.write(pos, buf, offset, length);
+		}
+
+		public void close() {
+			if (file == null)
+				return;
+
+			file = null;
+
+			lock.acquire();
+			openCount--;
+			lock.release();
+		}
+
+		private RamFile file;
+	}
+
+	private static final int chunkSize = Processor.pageSize;
+
+	/** The file system to import files from, or <tt>null</tt>. */
+	private FileSystem importFrom = null;
+
+	/** Protects the set of files and the count of open files. */
+	private Lock lock;
+
+	private HashMap<String, RamFile> files = new HashMap<String, RamFile>();
+
+	/** The names that have been looked up in <tt>importFrom</tt>. */
+	private HashSet<String> looked = new HashSet<String>();
+
+	private int openCount = 0;
+
+	private static final char dbgRam = 'r';
+}
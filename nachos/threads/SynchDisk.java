@@ -0,0 +1,316 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Provides a synchronous interface to the machine's disk. Any number of
+ * threads can have requests outstanding; each one blocks until its own
+ * request is done.
+ *
+ * <p>
+ * Requests are queued, and the disk is handed them in the order set by
+ * <tt>SynchDisk.scheduler</tt>:
+ * <ul>
+ * <li><tt>fifo</tt>, the order they arrive in;
+ * <li><tt>scan</tt>, the elevator algorithm: the head sweeps up the disk
+ * serving requests in order of sector, then back down;
+ * <li><tt>clook</tt>, the default: the head sweeps up the disk serving
+ * requests, then returns to the lowest pending request.
+ * </ul>
+ * A request never overtakes an older one for any of the same sectors if
+ * either of them writes. A request is merged with those that follow it on the
+ * disk in the same direction of transfer, into a single disk request of up to
+ * <tt>SynchDisk.maxMerge</tt> sectors, which defaults to one track.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new <tt>SynchDisk</tt>.
+	 *
+	 * @param disk the underlying disk to use.
+	 */
+	public SynchDisk(Disk disk) {
+		this.disk = disk;
+
+		String schedulerName = Config.getString("SynchDisk.scheduler", "clook");
+		if (schedulerName.equals("fifo"))
+			scheduler = fifo;
+		else if (schedulerName.equals("scan"))
+			scheduler = scan;
+		else if (schedulerName.equals("clook"))
+			scheduler = clook;
+		else
+			Lib.assertNotReached("unknown SynchDisk.scheduler: " + schedulerName);
+
+		maxMerge = Config.getInteger("SynchDisk.maxMerge", disk
+				.getSectorsPerTrack());
+		Lib.assertTrue(maxMerge > 0);
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				completionInterrupt();
+			}
+		});
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 *
+	 * @return the number of sectors.
+	 */
+	public int getNumSectors() {
+		return disk.getNumSectors();
+	}
+
+	/**
+	 * Read consecutive sectors into an array, blocking until they have been
+	 * read.
+	 *
+	 * @param sector the first sector to read.
+	 * @param count the number of sectors to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to store in the array.
+	 */
+	public void read(int sector, int count, byte[] data, int offset) {
+		request(false, sector, count, data, offset);
+	}
+
+	/**
+	 * Write consecutive sectors from an array, blocking until they have been
+	 * written.
+	 *
+	 * @param sector the first sector to write.
+	 * @param count the number of sectors to write.
+	 * @param data the array containing the data to write.
+	 * @param offset the first byte to write from the array.
+	 */
+	public void write(int sector, int count, byte[] data, int offset) {
+		request(true, sector, count, data, offset);
+	}
+
+	private void request(boolean writing, int sector, int count, byte[] data,
+			int offset) {
+		Lib.assertTrue(count > 0 && sector >= 0
+				&& sector + count <= disk.getNumSectors());
+		Lib.assertTrue(offset >= 0
+				&& offset + count * Disk.sectorSize <= data.length);
+
+		Request request = new Request(writing, sector, count, data, offset);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		request.seq = nextSeq++;
+		pending.put(key(sector, request.seq), request);
+
+		if (!busy)
+			startNext();
+
+		Machine.interrupt().restore(intStatus);
+
+		request.done.P();
+	}
+
+	/**
+	 * Give the disk the next request, merged with any that continue it. Called
+	 * with interrupts disabled.
+	 */
+	private void startNext() {
+		if (pending.isEmpty())
+			return;
+
+		Request first = choose();
+		for (Request older = olderConflict(first); older != null; older = olderConflict(first))
+			first = older;
+
+		pending.remove(key(first.sector, first.seq));
+		batch.add(first);
+
+		int end = first.sector + first.count;
+		int total = first.count;
+
+		while (true) {
+			Map.Entry<Long, Request> entry = pending.ceilingEntry(key(end, 0));
+			if (entry == null)
+				break;
+
+			Request next = entry.getValue();
+			if (next.sector != end || next.writing != first.writing
+					|| total + next.count > maxMerge
+					|| olderConflict(next) != null)
+				break;
+
+			pending.remove(entry.getKey());
+			batch.add(next);
+			end += next.count;
+			total += next.count;
+		}
+
+		headSector = end;
+		busy = true;
+
+		if (batch.size() == 1) {
+			buffer = null;
+			transfer(first.writing, first.sector, first.count, first.data,
+					first.offset);
+			return;
+		}
+
+		Lib.debug(dbgDisk, "merged " + batch.size() + " requests for sectors "
+				+ first.sector + " to " + (end - 1));
+
+		buffer = new byte[total * Disk.sectorSize];
+		if (first.writing) {
+			int position = 0;
+			for (Request request : batch) {
+				System.arraycopy(request.data, request.offset, buffer,
+						position, request.count * Disk.sectorSize);
+				position += request.count * Disk.sectorSize;
+			}
+		}
+
+		transfer(first.writing, first.sector, total, buffer, 0);
+	}
+
+	private void transfer(boolean writing, int sector, int count, byte[] data,
+			int offset) {
+		if (writing)
+			disk.writeRequest(sector, count, data, offset);
+		else
+			disk.readRequest(sector, count, data, offset);
+	}
+
+	/**
+	 * Return the pending request the scheduler would serve next, ignoring
+	 * conflicts with older requests.
+	 */
+	private Request choose() {
+		if (scheduler == fifo) {
+			Request oldest = null;
+			for (Request request : pending.values()) {
+				if (oldest == null || request.seq < oldest.seq)
+					oldest = request;
+			}
+			return oldest;
+		}
+
+		if (scheduler == clook) {
+			Map.Entry<Long, Request> entry = pending.ceilingEntry(key(
+					headSector, 0));
+			if (entry == null)
+				entry = pending.firstEntry();
+			return entry.getValue();
+		}
+
+		if (sweepingUp && pending.ceilingEntry(key(headSector, 0)) == null)
+			sweepingUp = false;
+		else if (!sweepingUp
+				&& pending.floorEntry(key(headSector, -1)) == null)
+			sweepingUp = true;
+
+		if (sweepingUp)
+			return pending.ceilingEntry(key(headSector, 0)).getValue();
+
+		// the oldest request for the nearest sector below the head
+		int sector = pending.floorEntry(key(headSector, -1)).getValue().sector;
+		return pending.ceilingEntry(key(sector, 0)).getValue();
+	}
+
+	/**
+	 * Return a pending request older than a request, for any of the same
+	 * sectors, where one of the two writes; or <tt>null</tt> if there is none.
+	 */
+	private Request olderConflict(Request request) {
+		for (Request other : pending.values()) {
+			if (other.seq < request.seq
+					&& (other.writing || request.writing)
+					&& other.sector < request.sector + request.count
+					&& request.sector < other.sector + other.count)
+				return other;
+		}
+
+		return null;
+	}
+
+	private void completionInterrupt() {
+		if (buffer != null && !batch.get(0).writing) {
+			int position = 0;
+			for (Request request : batch) {
+				System.arraycopy(buffer, position, request.data,
+						request.offset, request.count * Disk.sectorSize);
+				position += request.count * Disk.sectorSize;
+			}
+		}
+
+		for (Request request : batch)
+			request.done.V();
+
+		batch.clear();
+		buffer = null;
+		busy = false;
+
+		startNext();
+	}
+
+	/**
+	 * Return the key ordering pending requests by sector, and then by age.
+	 * A <tt>seq</tt> of -1 sorts after every request for the sector.
+	 */
+	private static long key(int sector, long seq) {
+		return ((long) sector << 32) | (seq & 0xFFFFFFFFL);
+	}
+
+	private static class Request {
+		Request(boolean writing, int sector, int count, byte[] data, int offset) {
+			this.writing = writing;
+			this.sector = sector;
+			this.count = count;
+			this.data = data;
+			this.offset = offset;
+		}
+
+		boolean writing;
+
+		int sector, count;
+
+		byte[] data;
+
+		int offset;
+
+		/** The order in which requests arrived. */
+		long seq;
+
+		Semaphore done = new Semaphore(0);
+	}
+
+	private static final int fifo = 0, scan = 1, clook = 2;
+
+	private Disk disk;
+
+	private int scheduler;
+
+	private int maxMerge;
+
+	/** The pending requests, by key. */
+	private TreeMap<Long, Request> pending = new TreeMap<Long, Request>();
+
+	private long nextSeq = 0;
+
+	/** The requests being served by the disk. */
+	private ArrayList<Request> batch = new ArrayList<Request>();
+
+	/** The buffer for a transfer merged from several requests. */
+	private byte[] buffer = null;
+
+	private boolean busy = false;
+
+	/** The sector after the last one transferred. */
+	private int headSector = 0;
+
+	/** Whether the head is sweeping towards higher sectors, for SCAN. */
+	private boolean sweepingUp = true;
+
+	private static final char dbgDisk = 'd';
+}
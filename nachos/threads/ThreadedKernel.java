@@ -15,13 +15,18 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * alarm, and enables interrupts. Creates a synchronous disk and a file
+	 * system, with a buffer cache in front of it, if necessary.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
 		scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+		// set disk, which a file system may be built on
+		if (Machine.disk() != null)
+			disk = new SynchDisk(Machine.disk());
+
 		// set fileSystem
 		String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 		if (fileSystemName != null)
@@ -36,6 +41,14 @@ public class ThreadedKernel extends Kernel {
 
 		alarm = new Alarm();
 
+		// cache the file system, now that the flusher thread can run
+		int bufferCacheBlocks = Config.getInteger(
+				"ThreadedKernel.bufferCacheBlocks", 0);
+		if (fileSystem != null && bufferCacheBlocks > 0) {
+			bufferCache = new BufferCache(fileSystem, bufferCacheBlocks);
+			fileSystem = bufferCache;
+		}
+
 		Machine.interrupt().enable();
 	}
 
@@ -74,6 +87,14 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (bufferCache != null)
+			bufferCache.sync();
+
+		FileSystem logged = (bufferCache != null) ? bufferCache
+				.getFileSystem() : fileSystem;
+		if (logged instanceof LogFileSystem)
+			((LogFileSystem) logged).sync();
+
 		Machine.halt();
 	}
 
@@ -86,6 +107,15 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/**
+	 * Globally accessible reference to the buffer cache, if the file system is
+	 * cached.
+	 */
+	public static BufferCache bufferCache = null;
+
+	/** Globally accessible reference to the disk, if the machine has one. */
+	public static SynchDisk disk = null;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
@@ -0,0 +1,307 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed COFF executables, so that running a program again neither
+ * opens nor parses its file, and loads its pages from memory.
+ *
+ * <p>
+ * An executable is parsed by <tt>Coff</tt> the first time it is run, and the
+ * parsed headers are kept. Each page of an initialized section is kept the
+ * first time it is loaded, through the <tt>Coff</tt>'s own
+ * <tt>loadPage()</tt>; once every page is kept, the file is closed. Cached
+ * executables are evicted least recently used first so that their pages fit
+ * in <tt>UserKernel.coffCacheSize</tt> bytes, and are dropped when their file
+ * is created, removed or written.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new COFF cache.
+	 *
+	 * @param capacity the number of bytes of section contents to keep.
+	 */
+	public CoffCache(int capacity) {
+		this.capacity = capacity;
+
+		lock = new Lock();
+	}
+
+	/**
+	 * Open an executable, from the cache if it is there.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return a loader for the executable, or <tt>null</tt> if the file could
+	 * not be opened or is not a valid executable.
+	 */
+	public CachedCoff open(String name) {
+		lock.acquire();
+
+		Executable executable = executables.get(name);
+		if (executable != null) {
+			executable.users++;
+			lock.release();
+
+			Lib.debug(dbgCoff, "\tcoff cache hit on " + name);
+			return new CachedCoff(executable);
+		}
+
+		lock.release();
+
+		Lib.debug(dbgCoff, "\tcoff cache miss on " + name);
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null) {
+			Lib.debug(dbgCoff, "\topen failed");
+			return null;
+		}
+
+		int length = file.length();
+
+		Coff coff;
+		try {
+			coff = new Coff(file);
+		}
+		catch (EOFException e) {
+			file.close();
+			Lib.debug(dbgCoff, "\tcoff load failed");
+			return null;
+		}
+
+		executable = new Executable(name, length, coff);
+
+		lock.acquire();
+
+		// another process may have cached the file while it was parsed
+		if (executable.size <= capacity && !executables.containsKey(name)) {
+			Iterator<Executable> i = executables.values().iterator();
+			while (cachedBytes + executable.size > capacity) {
+				Executable victim = i.next();
+				i.remove();
+				drop(victim);
+			}
+
+			executables.put(name, executable);
+			executable.cached = true;
+			cachedBytes += executable.size;
+		}
+
+		lock.release();
+
+		return new CachedCoff(executable);
+	}
+
+	/**
+	 * Drop a file from the cache because it is being created, removed or
+	 * written. Processes already running it are not affected.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+
+		Executable executable = executables.remove(name);
+		if (executable != null)
+			drop(executable);
+
+		lock.release();
+	}
+
+	/**
+	 * Account for an executable leaving the cache. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	private void drop(Executable executable) {
+		executable.cached = false;
+		cachedBytes -= executable.size;
+		executable.closeIfUnused();
+	}
+
+	/**
+	 * A parsed executable and whatever of its section contents has been
+	 * loaded, shared by every process running it.
+	 */
+	private class Executable {
+		Executable(String name, int length, Coff coff) {
+			this.name = name;
+			this.length = length;
+			this.coff = coff;
+
+			entryPoint = coff.getEntryPoint();
+
+			sections = new CachedSection[coff.getNumSections()];
+			for (int s = 0; s < sections.length; s++) {
+				sections[s] = new CachedSection(this, coff.getSection(s));
+				if (sections[s].isInitialzed()) {
+					numMissing += sections[s].getLength();
+					size += sections[s].getLength() * Processor.pageSize;
+				}
+			}
+
+			closeIfUnused();
+		}
+
+		/**
+		 * Close the file once no page will ever be loaded from it again. The
+		 * caller must hold <tt>lock</tt>, except while constructing.
+		 */
+		void closeIfUnused() {
+			if (coff == null || numLoading > 0)
+				return;
+
+			if (numMissing == 0 || (users == 0 && !cached)) {
+				coff.close();
+				coff = null;
+			}
+		}
+
+		String name;
+
+		/** The length of the file, in bytes. */
+		int length;
+
+		/** The loader reading the file, until every page is cached. */
+		Coff coff;
+
+		int entryPoint;
+
+		CachedSection[] sections;
+
+		/** The number of bytes in initialized sections. */
+		int size = 0;
+
+		/** The number of pages of initialized sections not yet cached. */
+		int numMissing = 0;
+
+		/** The number of pages being read from the file right now. */
+		int numLoading = 0;
+
+		/** The number of processes running this executable. */
+		int users = 1;
+
+		/** Whether this executable can still be found in the cache. */
+		boolean cached = false;
+	}
+
+	/**
+	 * A section of a cached executable.
+	 */
+	private class CachedSection extends CoffSection {
+		CachedSection(Executable executable, CoffSection section) {
+			super(null, section.getName(), false, section.isReadOnly(),
+					section.getLength(), section.getFirstVPN());
+
+			this.executable = executable;
+			this.section = section;
+
+			initialized = section.isInitialzed();
+			if (initialized)
+				pages = new byte[numPages][];
+		}
+
+		/**
+		 * Load a page from the cache, or from the file the first time it is
+		 * needed.
+		 */
+		public void loadPage(int spn, int ppn) {
+			Lib.assertTrue(spn >= 0 && spn < numPages);
+
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = ppn * Processor.pageSize;
+
+			if (!initialized) {
+				Arrays.fill(memory, paddr, paddr + Processor.pageSize, (byte) 0);
+				return;
+			}
+
+			if (pages[spn] != null) {
+				System.arraycopy(pages[spn], 0, memory, paddr, Processor.pageSize);
+				return;
+			}
+
+			lock.acquire();
+			executable.numLoading++;
+			lock.release();
+
+			section.loadPage(spn, ppn);
+
+			lock.acquire();
+			executable.numLoading--;
+			if (pages[spn] == null) {
+				pages[spn] = Arrays.copyOfRange(memory, paddr, paddr
+						+ Processor.pageSize);
+				executable.numMissing--;
+			}
+			executable.closeIfUnused();
+			lock.release();
+		}
+
+		private Executable executable;
+
+		/** The section as parsed by <tt>Coff</tt>, which reads the file. */
+		private CoffSection section;
+
+		/** The contents of each page, once it has been loaded. */
+		private byte[][] pages = null;
+	}
+
+	/**
+	 * The loader a process uses for a cached executable. Each process has its
+	 * own, and closing it stops the process from using the executable.
+	 */
+	public class CachedCoff extends Coff {
+		private CachedCoff(Executable executable) {
+			this.executable = executable;
+
+			entryPoint = executable.entryPoint;
+			sections = executable.sections;
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		/**
+		 * Return the length of the executable's file.
+		 *
+		 * @return the length of the file, in bytes.
+		 */
+		public int getFileLength() {
+			return executable.length;
+		}
+
+		public void close() {
+			if (sections == null)
+				return;
+
+			sections = null;
+
+			lock.acquire();
+			executable.users--;
+			executable.closeIfUnused();
+			lock.release();
+		}
+
+		private Executable executable;
+	}
+
+	/** The number of bytes of section contents the cache may hold. */
+	private int capacity;
+
+	private int cachedBytes = 0;
+
+	/** Protects everything in the cache but the contents of pages. */
+	private Lock lock;
+
+	/** The cached executables, least recently used first. */
+	private LinkedHashMap<String, Executable> executables = new LinkedHashMap<String, Executable>(
+			16, 0.75f, true);
+
+	private static final char dbgCoff = 'c';
+}
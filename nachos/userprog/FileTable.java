@@ -0,0 +1,240 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel's table of open files. However many times and by however many
+ * processes a file is opened, the table holds one handle on it from the file
+ * system, shared by every open of its name; the file is opened again only
+ * once the last of them is closed. Opening a file that is already open takes
+ * no simulated time and no host file.
+ *
+ * <p>
+ * Each open returns a <tt>Handle</tt> with its own file position. A handle is
+ * reference counted: <tt>dup()</tt> gives out another reference to the same
+ * handle, sharing its position, and the handle is released only when every
+ * reference has been closed. Streams such as the console can be wrapped in
+ * handles too, so that they can be shared the same way.
+ */
+public class FileTable {
+	/**
+	 * Allocate a new, empty open-file table.
+	 */
+	public FileTable() {
+		lock = new Lock();
+	}
+
+	/**
+	 * Open a file, truncating it if <tt>truncate</tt> is <tt>true</tt>, and
+	 * creating it if it does not exist and <tt>truncate</tt> is <tt>true</tt>.
+	 *
+	 * @param name the name of the file.
+	 * @param truncate whether to create and truncate the file.
+	 * @return a new handle on the file, or <tt>null</tt> if it could not be
+	 * opened.
+	 */
+	public Handle open(String name, boolean truncate) {
+		lock.acquire();
+
+		SharedFile shared = files.get(name);
+		if (shared != null && !truncate) {
+			shared.users++;
+			lock.release();
+			return new Handle(shared, shared.file);
+		}
+
+		lock.release();
+
+		// truncating goes through the file system even if the file is open
+		OpenFile file = ThreadedKernel.fileSystem.open(name, truncate);
+		if (file == null)
+			return null;
+
+		lock.acquire();
+
+		shared = files.get(name);
+		if (shared == null) {
+			shared = new SharedFile(name, file);
+			files.put(name, shared);
+			file = null;
+		}
+		shared.users++;
+
+		lock.release();
+
+		// someone else's handle on the file is already in the table
+		if (file != null)
+			file.close();
+
+		return new Handle(shared, shared.file);
+	}
+
+	/**
+	 * Wrap a stream, such as one end of the console, in a handle. Reads and
+	 * writes go straight to the stream.
+	 *
+	 * @param stream the stream.
+	 * @return a new handle on the stream, or <tt>null</tt> if
+	 * <tt>stream</tt> is <tt>null</tt>.
+	 */
+	public Handle wrap(OpenFile stream) {
+		if (stream == null)
+			return null;
+
+		return new Handle(null, stream);
+	}
+
+	/**
+	 * Stop sharing the handle on a file that is being removed, so that a file
+	 * created later with the same name is opened afresh. Handles already open
+	 * on the file can still use it.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void forget(String name) {
+		lock.acquire();
+		files.remove(name);
+		lock.release();
+	}
+
+	/**
+	 * An open file, as seen through a file descriptor. Reads and writes on a
+	 * file go through the table's shared handle at this handle's own
+	 * position.
+	 */
+	public class Handle extends OpenFile {
+		private Handle(SharedFile shared, OpenFile file) {
+			super(file.getFileSystem(), file.getName());
+
+			this.shared = shared;
+			this.file = file;
+		}
+
+		/**
+		 * Take another reference to this handle, which shares its position.
+		 *
+		 * @return this handle.
+		 */
+		public Handle dup() {
+			lock.acquire();
+			Lib.assertTrue(refs > 0);
+			refs++;
+			lock.release();
+
+			return this;
+		}
+
+		public int length() {
+			return file.length();
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			return file.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			return file.write(pos, buf, offset, length);
+		}
+
+		public void seek(int pos) {
+			if (shared == null)
+				file.seek(pos);
+			else
+				position = pos;
+		}
+
+		public int tell() {
+			if (shared == null)
+				return file.tell();
+
+			return position;
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			if (shared == null)
+				return file.read(buf, offset, length);
+
+			int amount = file.read(position, buf, offset, length);
+			if (amount == -1)
+				return -1;
+
+			position += amount;
+			return amount;
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			if (shared == null)
+				return file.write(buf, offset, length);
+
+			int amount = file.write(position, buf, offset, length);
+			if (amount == -1)
+				return -1;
+
+			position += amount;
+			return amount;
+		}
+
+		/**
+		 * Give up a reference to this handle. When the last one is gone, the
+		 * handle is released, and so is the file once no handle uses it.
+		 */
+		public void close() {
+			OpenFile closing = null;
+
+			lock.acquire();
+
+			if (refs > 0 && --refs == 0) {
+				if (shared == null)
+					closing = file;
+				else if (--shared.users == 0) {
+					if (files.get(shared.name) == shared)
+						files.remove(shared.name);
+					closing = shared.file;
+				}
+			}
+
+			lock.release();
+
+			if (closing != null)
+				closing.close();
+		}
+
+		/** The shared file, or <tt>null</tt> if this is a stream. */
+		private SharedFile shared;
+
+		/** The file system's handle on the file, or the stream. */
+		private OpenFile file;
+
+		private int position = 0;
+
+		/** The number of references to this handle that are not closed. */
+		private int refs = 1;
+	}
+
+	/**
+	 * The file system's handle on a file, shared by every handle in the table
+	 * on it.
+	 */
+	private static class SharedFile {
+		SharedFile(String name, OpenFile file) {
+			this.name = name;
+			this.file = file;
+		}
+
+		String name;
+
+		OpenFile file;
+
+		/** The number of handles on this file. */
+		int users = 0;
+	}
+
+	/** Protects <tt>files</tt>, user counts and reference counts. */
+	private Lock lock;
+
+	/** The file shared by every open of each name, by file name. */
+	private HashMap<String, SharedFile> files = new HashMap<String, SharedFile>();
+}
@@ -0,0 +1,209 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * Keeps track of which physical pages of main memory are free. Free frames are
+ * recorded in a bitmap, so that any number of frames can be allocated or freed
+ * under a single acquisition of the allocator's lock.
+ *
+ * <p>
+ * A frame can be shared by several processes. Each allocated frame has a
+ * reference count, which starts at one and is raised by <tt>share()</tt>.
+ * Freeing a frame drops one reference, and the frame only becomes free when
+ * the last one is dropped.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator, with every frame free.
+	 *
+	 * @param numFrames the number of physical pages to manage.
+	 */
+	public FrameAllocator(int numFrames) {
+		this.numFrames = numFrames;
+
+		free = new BitSet(numFrames);
+		free.set(0, numFrames);
+		numFree = numFrames;
+
+		references = new int[numFrames];
+
+		lock = new Lock();
+	}
+
+	/**
+	 * Allocate the specified number of frames. Either all of them are
+	 * allocated or, if there are not enough free frames, none are.
+	 *
+	 * @param count the number of frames to allocate.
+	 * @return the physical page numbers of the frames, or <tt>null</tt> if
+	 * there are fewer than <tt>count</tt> free frames.
+	 */
+	public int[] allocate(int count) {
+		Lib.assertTrue(count >= 0);
+
+		lock.acquire();
+
+		if (count > numFree) {
+			lock.release();
+			return null;
+		}
+
+		int[] frames = new int[count];
+		int ppn = 0;
+		for (int i = 0; i < count; i++) {
+			ppn = free.nextSetBit(ppn);
+			references[ppn] = 1;
+			frames[i] = ppn++;
+		}
+
+		// the frames found are all below ppn, and every free frame below ppn
+		// was taken
+		free.clear(0, ppn);
+		numFree -= count;
+
+		lock.release();
+		return frames;
+	}
+
+	/**
+	 * Allocate a run of physically contiguous frames.
+	 *
+	 * @param count the number of frames to allocate.
+	 * @return the physical page number of the first frame in the run, or
+	 * <tt>-1</tt> if there is no run of <tt>count</tt> free frames.
+	 */
+	public int allocateContiguous(int count) {
+		Lib.assertTrue(count > 0);
+
+		lock.acquire();
+
+		int first = free.nextSetBit(0);
+		while (first >= 0 && first + count <= numFrames) {
+			int end = free.nextClearBit(first);
+			if (end - first >= count) {
+				free.clear(first, first + count);
+				numFree -= count;
+
+				for (int ppn = first; ppn < first + count; ppn++)
+					references[ppn] = 1;
+
+				lock.release();
+				return first;
+			}
+
+			first = free.nextSetBit(end);
+		}
+
+		lock.release();
+		return -1;
+	}
+
+	/**
+	 * Free the specified frames, dropping one reference to each.
+	 *
+	 * @param frames the physical page numbers of the frames to free.
+	 * @param count the number of entries of <tt>frames</tt> to free.
+	 */
+	public void free(int[] frames, int count) {
+		lock.acquire();
+
+		for (int i = 0; i < count; i++)
+			release(frames[i]);
+
+		lock.release();
+	}
+
+	/**
+	 * Free a run of physically contiguous frames, dropping one reference to
+	 * each.
+	 *
+	 * @param first the physical page number of the first frame in the run.
+	 * @param count the number of frames in the run.
+	 */
+	public void freeContiguous(int first, int count) {
+		lock.acquire();
+
+		for (int ppn = first; ppn < first + count; ppn++)
+			release(ppn);
+
+		lock.release();
+	}
+
+	private void release(int ppn) {
+		Lib.assertTrue(!free.get(ppn) && references[ppn] > 0);
+
+		if (--references[ppn] == 0) {
+			free.set(ppn);
+			numFree++;
+		}
+	}
+
+	/**
+	 * Add a reference to an allocated frame, for another process that maps
+	 * it.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 */
+	public void share(int ppn) {
+		lock.acquire();
+
+		Lib.assertTrue(!free.get(ppn));
+		references[ppn]++;
+
+		lock.release();
+	}
+
+	/**
+	 * Return the number of references to a frame.
+	 *
+	 * @param ppn the physical page number of the frame.
+	 * @return the number of references, which is 0 if the frame is free.
+	 */
+	public int getReferenceCount(int ppn) {
+		return references[ppn];
+	}
+
+	/**
+	 * Return the number of frames managed by this allocator.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	/**
+	 * Return the number of free frames.
+	 *
+	 * @return the number of free frames.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Return the number of allocated frames.
+	 *
+	 * @return the number of allocated frames.
+	 */
+	public int getNumUsed() {
+		return numFrames - numFree;
+	}
+
+	private int numFrames;
+
+	/** The free frames. */
+	private BitSet free;
+
+	private int numFree;
+
+	/** The number of references to each frame. */
+	private int[] references;
+
+	/** Protects <tt>free</tt>, <tt>numFree</tt> and <tt>references</tt>. */
+	private Lock lock;
+}
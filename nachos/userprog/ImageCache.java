@@ -0,0 +1,182 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * Keeps track of the read-only pages of executables that are loaded in
+ * memory, so that processes running the same executable can share one copy of
+ * them. The first process to load an executable publishes the frames holding
+ * its read-only pages; processes that load it later map those frames instead
+ * of loading the pages again.
+ *
+ * <p>
+ * An image is identified by the executable's file name and length, and lasts
+ * as long as some process is using it. Every user of an image holds a
+ * reference to each of its frames, and gives it up only after it stops being
+ * a user, so the frames of an image that can still be found are never free.
+ */
+public class ImageCache {
+	/**
+	 * Allocate a new, empty image cache.
+	 */
+	public ImageCache() {
+		lock = new Lock();
+	}
+
+	/**
+	 * Find the image of an executable and become one of its users, taking a
+	 * reference to each of its frames.
+	 *
+	 * @param name the name of the executable.
+	 * @param length the length of the executable, in bytes.
+	 * @return the image, or <tt>null</tt> if the executable is not loaded.
+	 */
+	public Image acquire(String name, int length) {
+		lock.acquire();
+
+		Image image = images.get(name);
+		if (image == null || image.length != length) {
+			lock.release();
+			return null;
+		}
+
+		image.users++;
+		for (int i = 0; i < image.numFrames; i++)
+			UserKernel.frames.share(image.ppns[i]);
+
+		lock.release();
+		return image;
+	}
+
+	/**
+	 * Publish the read-only pages of a newly loaded executable, making the
+	 * caller the image's first user. Nothing is published if another process
+	 * got there first, or if the executable has no read-only pages.
+	 *
+	 * @param name the name of the executable.
+	 * @param length the length of the executable, in bytes.
+	 * @param pageTable the page table of the process that loaded it.
+	 * @return the new image, or <tt>null</tt> if none was published.
+	 */
+	public Image publish(String name, int length, TranslationEntry[] pageTable) {
+		Image image = new Image(name, length, pageTable);
+		if (image.numFrames == 0)
+			return null;
+
+		lock.acquire();
+
+		if (images.containsKey(name)) {
+			lock.release();
+			return null;
+		}
+
+		images.put(name, image);
+
+		lock.release();
+		return image;
+	}
+
+	/**
+	 * Stop being a user of an image. The caller must still hold its
+	 * references to the image's frames, and may free them afterwards.
+	 *
+	 * @param image the image.
+	 */
+	public void release(Image image) {
+		lock.acquire();
+
+		Lib.assertTrue(image.users > 0);
+		if (--image.users == 0 && images.get(image.name) == image)
+			images.remove(image.name);
+
+		lock.release();
+	}
+
+	/**
+	 * Forget the image of a file that is being changed or removed, so that
+	 * later processes load it afresh. Processes already using the image keep
+	 * it.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+		images.remove(name);
+		lock.release();
+	}
+
+	/**
+	 * The frames holding the read-only pages of a loaded executable.
+	 */
+	public static class Image {
+		private Image(String name, int length, TranslationEntry[] pageTable) {
+			this.name = name;
+			this.length = length;
+
+			frames = new int[pageTable.length];
+			ppns = new int[pageTable.length];
+
+			for (int vpn = 0; vpn < pageTable.length; vpn++) {
+				frames[vpn] = -1;
+				if (pageTable[vpn].valid && pageTable[vpn].readOnly) {
+					frames[vpn] = pageTable[vpn].ppn;
+					ppns[numFrames++] = pageTable[vpn].ppn;
+				}
+			}
+		}
+
+		/**
+		 * Return the frame holding a virtual page of the image.
+		 *
+		 * @param vpn the virtual page number.
+		 * @return the physical page number, or <tt>-1</tt> if the page is not
+		 * read-only.
+		 */
+		public int getFrame(int vpn) {
+			return (vpn < frames.length) ? frames[vpn] : -1;
+		}
+
+		/**
+		 * Return the number of frames in the image.
+		 *
+		 * @return the number of read-only pages.
+		 */
+		public int getNumFrames() {
+			return numFrames;
+		}
+
+		/**
+		 * Return the frames in the image.
+		 *
+		 * @return an array whose first <tt>getNumFrames()</tt> entries are the
+		 * physical page numbers of the image's frames.
+		 */
+		public int[] getFrames() {
+			return ppns;
+		}
+
+		private String name;
+
+		private int length;
+
+		/** The frame holding each virtual page, or -1. */
+		private int[] frames;
+
+		/** The frames, packed. */
+		private int[] ppns;
+
+		private int numFrames = 0;
+
+		/** The number of processes using this image. */
+		private int users = 1;
+	}
+
+	/** Protects <tt>images</tt> and the user counts of images. */
+	private Lock lock;
+
+	/** The image of each executable that is loaded, by file name. */
+	private HashMap<String, Image> images = new HashMap<String, Image>();
+}
@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
 /**
  * A kernel that can support multiple user processes.
  */
@@ -24,10 +23,13 @@ public class UserKernel extends ThreadedKernel {
 
 		console = new SynchConsole(Machine.console());
 		processLock = new Lock();
+		frames = new FrameAllocator(Machine.processor().getNumPhysPages());
+		images = new ImageCache();
+		coffs = new CoffCache(Config.getInteger("UserKernel.coffCacheSize",
+				256 * 1024));
+		openFiles = new FileTable();
+		maxDescriptors = Config.getInteger("UserKernel.maxDescriptors", 1024);
 
-		for(int i = 0; i < Machine.processor().getNumPhysPages(); i++){ //initiate ppn table
-			ppnUsed.add(i);
-		}
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -124,24 +126,19 @@ public class UserKernel extends ThreadedKernel {
 		super.terminate();
 	}
 
-	/**
-	 * Self-added helper function, finds first unused index (PPN) 
-	 */
-	// public static int getFirstUnused(){
-	// 	for(int i = 0; i < ppnUsed.length; i++){
-	// 		if(ppnUsed[i] == false){
-	// 			return i;
-	// 		}
-	// 	}
-	// 	//all full
-	// 	return -1;
-	// }
-
 	public static int pidCounter = 0;
 	public static int numProcesses = 0;
 	public static Lock processLock;
-	//public static boolean[] ppnUsed = new boolean[Machine.processor().getNumPhysPages()];
-	public static LinkedList<Integer> ppnUsed = new LinkedList<>();
+	/** Globally accessible reference to the physical page allocator. */
+	public static FrameAllocator frames;
+	/** Globally accessible reference to the shared executable images. */
+	public static ImageCache images;
+	/** Globally accessible reference to the parsed executables. */
+	public static CoffCache coffs;
+	/** Globally accessible reference to the open-file table. */
+	public static FileTable openFiles;
+	/** The most file descriptors a process can have open. */
+	public static int maxDescriptors;
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
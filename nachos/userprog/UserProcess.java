@@ -5,8 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.io.EOFException;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -33,8 +35,8 @@ public class UserProcess {
 		UserKernel.numProcesses++;
 		UserKernel.processLock.release();
 
-		fdTable[0] = UserKernel.console.openForReading();
-		fdTable[1] = UserKernel.console.openForWriting();
+		allocateDescriptor(UserKernel.openFiles.wrap(UserKernel.console.openForReading()));
+		allocateDescriptor(UserKernel.openFiles.wrap(UserKernel.console.openForWriting()));
 
 		status = -1;
 		parent = null;
@@ -175,10 +177,15 @@ public class UserProcess {
 		byte[] memory = Machine.processor().getMemory();
 
 		//System.out.println("RVM param test 3");
-		if (vaddr < 0 || vaddr >= memory.length)
+		//mapped files lie above the program, wherever physical memory ends
+		if (vaddr < 0 || vaddr >= pageTable.length * pageSize)
 			return 0;
 		//System.out.println("RVM param tests passed");
 
+		//pages of mapped files are read in before they are copied
+		if(!loadMappedPages(vaddr, length))
+			return 0;
+
 		int vpn = Processor.pageFromAddress(vaddr);
 		int vpnOffset = Processor.offsetFromAddress(vaddr);
 		TranslationEntry entry = pageTable[vpn];
@@ -285,9 +292,23 @@ public class UserProcess {
 	
 		byte[] memory = Machine.processor().getMemory();
 	//	System.out.println("WVM param test 3");
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
+		if (vaddr < 0 || vaddr >= pageTable.length * pageSize)
+			return 0;
+
+		//pages still shared with a forked process get their own copy first
+		int lastVPN = Math.min(Processor.pageFromAddress(vaddr + Math.max(length, 1) - 1), pageTable.length - 1);
+		for(int i = Processor.pageFromAddress(vaddr); i <= lastVPN; i++){
+			if(isCopyOnWrite(i) && !breakCopyOnWrite(i))
+				return 0;
+		}
+
+		//pages of mapped files are read in, and written back once changed
+		if(!loadMappedPages(vaddr, length))
 			return 0;
+		for(int i = Processor.pageFromAddress(vaddr); i <= lastVPN; i++){
+			if(isMapped(i))
+				pageTable[i].dirty = true;
+		}
 
 		//System.out.println("WVM param passed");
 		int vpn = Processor.pageFromAddress(vaddr);
@@ -354,6 +375,85 @@ public class UserProcess {
 		return totalBytesRead;
 	}
 
+	/**
+	 * Resolve a range of this process's virtual memory into the segments of
+	 * physical memory that back it, so that a transfer can go directly between
+	 * a file and main memory. Each segment is a physical address and a length,
+	 * stored as a pair in <tt>segments</tt>; physically contiguous pages are
+	 * merged into one segment. The whole range is checked before anything is
+	 * transferred. Subclasses may resolve only the start of the range, in
+	 * which case the caller resolves the rest once it is done with the start.
+	 * 
+	 * @param vaddr the first byte of virtual memory in the range.
+	 * @param length the number of bytes in the range.
+	 * @param write <tt>true</tt> if the range will be written.
+	 * @return the number of segments, which cover the start of the range, or
+	 * -1 if part of the range is not mapped, or is read-only and
+	 * <tt>write</tt> is <tt>true</tt>.
+	 */
+	protected int translateRange(int vaddr, int length, boolean write) {
+		if (vaddr < 0 || length < 0 || vaddr + length < 0)
+			return -1;
+
+		if (length == 0)
+			return 0;
+
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+		if (lastVPN >= pageTable.length)
+			return -1;
+
+		int maxSegments = lastVPN - firstVPN + 1;
+		if (segments == null || segments.length < maxSegments * 2)
+			segments = new int[maxSegments * 2];
+
+		int numSegments = 0;
+		for (int vpn = firstVPN; vpn <= lastVPN; vpn++) {
+			if (write && isCopyOnWrite(vpn) && !breakCopyOnWrite(vpn))
+				return -1;
+
+			if (!pageTable[vpn].valid && isMapped(vpn) && !loadMappedPage(vpn))
+				return -1;
+
+			TranslationEntry entry = pageTable[vpn];
+			if (!entry.valid || (write && entry.readOnly))
+				return -1;
+
+			entry.used = true;
+			if (write)
+				entry.dirty = true;
+
+			int start = (vpn == firstVPN) ? Processor.offsetFromAddress(vaddr) : 0;
+			int end = (vpn == lastVPN) ? Processor
+					.offsetFromAddress(vaddr + length - 1) + 1 : pageSize;
+			int paddr = entry.ppn * pageSize + start;
+
+			if (numSegments > 0
+					&& segments[numSegments * 2 - 2]
+							+ segments[numSegments * 2 - 1] == paddr) {
+				segments[numSegments * 2 - 1] += end - start;
+			}
+			else {
+				segments[numSegments * 2] = paddr;
+				segments[numSegments * 2 + 1] = end - start;
+				numSegments++;
+			}
+		}
+
+		return numSegments;
+	}
+
+	/**
+	 * Called once a transfer over a range resolved by <tt>translateRange()</tt>
+	 * is done with its segments. Subclasses that keep the pages of a range in
+	 * memory while it is in use can let them go here.
+	 * 
+	 * @param vaddr the first byte of virtual memory in the range.
+	 * @param length the number of bytes the segments covered.
+	 */
+	protected void releaseRange(int vaddr, int length) {
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -367,21 +467,17 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 		
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		// a program run before is neither reopened nor parsed again
+		CoffCache.CachedCoff executable = UserKernel.coffs.open(name);
 		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
 
+		coff = executable;
+		imageName = name;
+		imageLength = executable.getFileLength();
+
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -449,7 +545,18 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		if (numPages > Machine.processor().getNumPhysPages()) {
+		//read-only pages of an executable another process is running are shared
+		image = UserKernel.images.acquire(imageName, imageLength);
+		int numShared = (image == null) ? 0 : image.getNumFrames();
+
+		//take every other frame the process needs in one go, or none of them
+		int[] frames = UserKernel.frames.allocate(numPages - numShared);
+		if (frames == null) {
+			if (image != null) {
+				UserKernel.images.release(image);
+				UserKernel.frames.free(image.getFrames(), numShared);
+				image = null;
+			}
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
@@ -459,8 +566,12 @@ public class UserProcess {
 		pageTable = new TranslationEntry[numPages];
 
 		//fill the table
-		for (int i = 0; i < numPages; i++)
-		 	pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+		for (int i = 0, next = 0; i < numPages; i++) {
+			int ppn = (image == null) ? -1 : image.getFrame(i);
+			if (ppn == -1)
+				ppn = frames[next++];
+		 	pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false);
+		}
 
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -472,50 +583,19 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) { //for each coff section (which is a page long), get it's VPN 
 				int vpn = section.getFirstVPN() + i;
 
-				//acquire lock to access UK ppnTable
-				UserKernel.processLock.acquire();
-				
-				//find first available ppnUsed space, store as ppn
-				//int ppn = UserKernel.getFirstUnused();
-				if(UserKernel.ppnUsed.size() == 0){
-					unloadSections();
-					UserKernel.processLock.release();
-					return false;
-				}
-				int ppn = UserKernel.ppnUsed.removeFirst();
-				//release lock
-				UserKernel.processLock.release();
-
-				//update pageTable entry with ppn, valid bit, and readonly stat
-				pageTable[vpn].ppn = ppn;
-				//pageTable[vpn].valid = true;
 				pageTable[vpn].readOnly = section.isReadOnly();
 
-				//section load page
-				section.loadPage(i, ppn);
+				//section load page, unless it is already there
+				if (image == null || image.getFrame(vpn) == -1)
+					section.loadPage(i, pageTable[vpn].ppn);
 			}
 		}
 
-		//load in stack + argument pages
-		final int stackAndArg = 9;
-		for(int i = numPages - stackAndArg; i < numPages; i++){
-			//acquire lock to access UK ppnTable
-				UserKernel.processLock.acquire();
+		if (image == null)
+			image = UserKernel.images.publish(imageName, imageLength, pageTable);
+		else
+			Lib.debug(dbgProcess, "\tsharing " + numShared + " read-only pages");
 
-				//find first available ppnUsed space, store as ppn
-				//if none, unload all pages and return error && release lock
-				if(UserKernel.ppnUsed.size() == 0){
-					unloadSections();
-					UserKernel.processLock.release();
-					return false;
-				}
-				int ppn = UserKernel.ppnUsed.removeFirst();
-				
-				//System.out.println("Stack args, current index is: " + i + " and current ppn is: " + ppn );
-				UserKernel.processLock.release();
-
-				pageTable[i].ppn = ppn;
-		}
 		return true;
 	}
 
@@ -523,18 +603,251 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		//for each section in the pagetable
+		//stop using the image before our references to its frames go
+		if (image != null) {
+			UserKernel.images.release(image);
+			image = null;
+		}
+
+		//collect the frames of the valid pages and free them all at once
+		int[] frames = new int[pageTable.length];
+		int count = 0;
 		for(int i = 0; i < pageTable.length; i++){
-			//if it is valid (in use), free the pages, set it to not valid 
 			if(pageTable[i].valid == true){
 				pageTable[i].valid = false; //set to not valid
-				//engage lock
-				UserKernel.processLock.acquire();
-				UserKernel.ppnUsed.add(pageTable[i].ppn);
-				UserKernel.processLock.release();
+				frames[count++] = pageTable[i].ppn;
 			}
 		}
-	
+
+		UserKernel.frames.free(frames, count);
+	}
+
+	/**
+	 * Give a child created by <tt>fork()</tt> an address space sharing every
+	 * physical page of this one. Writable pages are mapped read-only in both
+	 * processes and marked copy-on-write, so that the first write to one by
+	 * either process gives it its own copy.
+	 * 
+	 * @param child the new process.
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean forkSections(UserProcess child) {
+		if (copyOnWrite == null)
+			copyOnWrite = new boolean[numPages];
+
+		child.numPages = numPages;
+		child.pageTable = new TranslationEntry[numPages];
+		child.copyOnWrite = new boolean[numPages];
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+
+			if (!entry.readOnly) {
+				entry.readOnly = true;
+				copyOnWrite[vpn] = true;
+			}
+			child.copyOnWrite[vpn] = copyOnWrite[vpn];
+
+			if (entry.valid)
+				UserKernel.frames.share(entry.ppn);
+
+			child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn,
+					entry.valid, true, false, false);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Return whether a page is mapped read-only only because its frame is
+	 * shared with a forked process.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page is copy-on-write.
+	 */
+	protected boolean isCopyOnWrite(int vpn) {
+		return copyOnWrite != null && vpn >= 0 && vpn < copyOnWrite.length
+				&& copyOnWrite[vpn];
+	}
+
+	/**
+	 * Make a copy-on-write page writable, copying it into a frame of its own
+	 * unless no other process shares its frame any more.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>false</tt> if there was no free frame for the copy.
+	 */
+	protected boolean breakCopyOnWrite(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		int ppn = entry.ppn;
+
+		if (UserKernel.frames.getReferenceCount(ppn) > 1) {
+			int[] copy = UserKernel.frames.allocate(1);
+			if (copy == null)
+				return false;
+
+			Lib.debug(dbgProcess, "\tcopying page " + vpn + " from frame " + ppn
+					+ " to frame " + copy[0]);
+
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, ppn * pageSize, memory, copy[0] * pageSize,
+					pageSize);
+
+			entry.ppn = copy[0];
+			UserKernel.frames.free(new int[] { ppn }, 1);
+		}
+
+		entry.readOnly = false;
+		copyOnWrite[vpn] = false;
+		return true;
+	}
+
+	/**
+	 * Return whether a page belongs to a file mapped by <tt>mmap()</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page is mapped.
+	 */
+	protected boolean isMapped(int vpn) {
+		return findMapping(vpn) != null;
+	}
+
+	private Mapping findMapping(int vpn) {
+		for (Mapping mapping : mappings) {
+			if (vpn >= mapping.firstVPN
+					&& vpn < mapping.firstVPN + mapping.numPages)
+				return mapping;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Give a page of a mapped file a frame and read it in from the file.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>false</tt> if there was no free frame.
+	 */
+	private boolean loadMappedPage(int vpn) {
+		int[] frame = UserKernel.frames.allocate(1);
+		if (frame == null)
+			return false;
+
+		readMappedPage(vpn, frame[0]);
+
+		TranslationEntry entry = pageTable[vpn];
+		entry.ppn = frame[0];
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+		return true;
+	}
+
+	/**
+	 * Read in every page of a range that belongs to a mapped file and is not
+	 * yet in memory.
+	 * 
+	 * @param vaddr the first byte of virtual memory in the range.
+	 * @param length the number of bytes in the range.
+	 * @return <tt>false</tt> if there was no free frame for a page.
+	 */
+	private boolean loadMappedPages(int vaddr, int length) {
+		int lastVPN = Math.min(Processor.pageFromAddress(vaddr
+				+ Math.max(length, 1) - 1), pageTable.length - 1);
+
+		for (int vpn = Processor.pageFromAddress(vaddr); vpn <= lastVPN; vpn++) {
+			if (!pageTable[vpn].valid && isMapped(vpn) && !loadMappedPage(vpn))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fill a frame with a page of a mapped file. The part of the page past the
+	 * end of the file is zero-filled.
+	 * 
+	 * @param vpn the virtual page number, which must be mapped.
+	 * @param ppn the physical page number.
+	 */
+	protected void readMappedPage(int vpn, int ppn) {
+		Mapping mapping = findMapping(vpn);
+		int position = mapping.offset + (vpn - mapping.firstVPN) * pageSize;
+
+		Lib.debug(dbgProcess, "\treading page " + vpn + " from "
+				+ mapping.file.getName() + " at " + position);
+
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = ppn * pageSize;
+
+		int amount = Math.max(mapping.file.read(position, memory, paddr,
+				pageSize), 0);
+		Arrays.fill(memory, paddr + amount, paddr + pageSize, (byte) 0);
+	}
+
+	/**
+	 * Write a page of a mapped file back to the file. Only the part of the
+	 * page inside the mapping is written.
+	 * 
+	 * @param vpn the virtual page number, which must be mapped.
+	 * @param ppn the physical page number holding the page.
+	 */
+	protected void writeMappedPage(int vpn, int ppn) {
+		Mapping mapping = findMapping(vpn);
+		int start = (vpn - mapping.firstVPN) * pageSize;
+		int amount = Math.min(mapping.length - start, pageSize);
+
+		Lib.debug(dbgProcess, "\twriting page " + vpn + " to "
+				+ mapping.file.getName() + " at " + (mapping.offset + start));
+
+		//the file may be an executable whose cached copies are now stale
+		fileChanged(mapping.file.getName());
+		mapping.file.write(mapping.offset + start,
+				Machine.processor().getMemory(), ppn * pageSize, amount);
+	}
+
+	/**
+	 * Remove the pages of a mapped file from memory, writing back the ones
+	 * that were changed. Called by <tt>munmap()</tt> and on exit, while the
+	 * file is still mapped.
+	 * 
+	 * @param firstVPN the first virtual page of the file.
+	 * @param count the number of pages.
+	 */
+	protected void unmapPages(int firstVPN, int count) {
+		int[] frames = new int[count];
+		int numFrames = 0;
+
+		for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				if (entry.dirty)
+					writeMappedPage(vpn, entry.ppn);
+
+				entry.valid = false;
+				frames[numFrames++] = entry.ppn;
+			}
+		}
+
+		UserKernel.frames.free(frames, numFrames);
+	}
+
+	/**
+	 * Extend the page table to cover more virtual pages, to make room for a
+	 * mapped file. The new pages are not valid.
+	 * 
+	 * @param length the new number of entries.
+	 */
+	protected void growPageTable(int length) {
+		TranslationEntry[] table = new TranslationEntry[length];
+		System.arraycopy(pageTable, 0, table, 0, pageTable.length);
+
+		for (int vpn = pageTable.length; vpn < length; vpn++)
+			table[vpn] = new TranslationEntry(vpn, 0, false, false, false,
+					false);
+
+		pageTable = table;
+		restoreState();
 	}
 
 	/**
@@ -547,8 +860,17 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked process picks up where its parent was
+		if (forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
-		for (int i = 0; i < processor.numUserRegisters; i++)
+		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
 
 		// initialize PC and SP according
@@ -566,7 +888,8 @@ public class UserProcess {
 	private int handleHalt() {
 
 		if(pID == 0){
-			Machine.halt();
+			//let the kernel clean up (e.g. remove its swap file) first
+			Kernel.kernel.terminate();
 		}
 		
 		//Lib.assertNotReached("Machine.halt() did not halt machine!, not PID");
@@ -593,65 +916,113 @@ public class UserProcess {
 */
 	private int handleCreat(int vaName){
 		
-		int fileDesc = 0;
-		while(fdTable[fileDesc] != null && fileDesc < 16){
-			fileDesc++;
-		}
-
-		if (fileDesc < 16) {
+		//don't truncate a file that could not be given a descriptor
+		if (usedDescriptors.nextClearBit(0) < UserKernel.maxDescriptors) {
 			String name = readVirtualMemoryString(vaName, 256);
 			if (name != null) {
-				OpenFile tempFile = ThreadedKernel.fileSystem.open(name, true);
+				FileTable.Handle tempFile = UserKernel.openFiles.open(name, true);
 				//OpenFile tempFile = Machine.stubFileSystem().open(name, true);
 				if (tempFile != null) {
-					fdTable[fileDesc] = tempFile;
+					//the file was truncated, so cached copies of it are stale
+					fileChanged(name);
+					int fileDesc = allocateDescriptor(tempFile);
 					//System.out.println("Handle Creat success, file Desc is: " + fileDesc);
 					return fileDesc;
 				} 
 			}
 		}
-		//System.out.println("Handle Creat failed, file Desc is: " + fileDesc);
+		//System.out.println("Handle Creat failed");
 		return -1;
 	}
 
-	private int handleOpen(int vaName){
-		int fileDesc = 0;
-		while(fdTable[fileDesc] != null && fileDesc < 16){
-			fileDesc++;
-		}
+	/**
+	 * Forget any cached copy of an executable file that is being changed.
+	 */
+	private static void fileChanged(String name){
+		UserKernel.coffs.invalidate(name);
+		UserKernel.images.invalidate(name);
+	}
 
-		if (fileDesc < 16) {
+	private int handleOpen(int vaName){
+		if (usedDescriptors.nextClearBit(0) < UserKernel.maxDescriptors) {
 			String name = readVirtualMemoryString(vaName, 256);
 			if (name != null) {
-				OpenFile tempFile = ThreadedKernel.fileSystem.open(name, false);
+				FileTable.Handle tempFile = UserKernel.openFiles.open(name, false);
 				// OpenFile tempFile = Machine.stubFileSystem().open(name, false);
 				if (tempFile != null) {
-					fdTable[fileDesc] = tempFile;
+					int fileDesc = allocateDescriptor(tempFile);
 					//System.out.println("Handle Open success, file Desc is: " + fileDesc);
 					return fileDesc;
 				} 
 			}
 		}
-		//System.out.println("Handle Open failed, file Desc is: " + fileDesc);
+		//System.out.println("Handle Open failed");
 		return -1;
 	}
 
+	/**
+	 * Give an open file the lowest free descriptor, growing the descriptor
+	 * table if it is full. If there is none to give, the file is closed.
+	 * 
+	 * @return the descriptor, or -1 if the process has too many open.
+	 */
+	private int allocateDescriptor(FileTable.Handle file){
+		int fileDesc = usedDescriptors.nextClearBit(0);
+		if(fileDesc >= UserKernel.maxDescriptors){
+			file.close();
+			return -1;
+		}
+
+		if(fileDesc >= fdTable.length)
+			fdTable = Arrays.copyOf(fdTable, Math.min(fdTable.length * 2, UserKernel.maxDescriptors));
+
+		fdTable[fileDesc] = file;
+		usedDescriptors.set(fileDesc);
+		return fileDesc;
+	}
+
+	/**
+	 * Return the open file a descriptor refers to, or <tt>null</tt> if it is
+	 * not a descriptor in use.
+	 */
+	private FileTable.Handle getDescriptor(int fileDescriptor){
+		if(fileDescriptor < 0 || fileDescriptor >= fdTable.length)
+			return null;
+		return fdTable[fileDescriptor];
+	}
+
 	private int handleClose(int fileDescriptor){
-		if(fileDescriptor < 16 && fileDescriptor >= 0){
-			if(fdTable[fileDescriptor] != null){
-				fdTable[fileDescriptor].close();
-				fdTable[fileDescriptor] = null;
-				return 0;
-			}
+		FileTable.Handle file = getDescriptor(fileDescriptor);
+		if(file != null){
+			file.close();
+			fdTable[fileDescriptor] = null;
+			usedDescriptors.clear(fileDescriptor);
+			return 0;
 		}
 		return -1;
 	}
 
+	/**
+	 * Handle the dup() system call: give an open file another descriptor, the
+	 * lowest free one. The two descriptors share the file position, and the
+	 * file stays open until both are closed.
+	 * 
+	 * @return the new descriptor, or -1 if it could not be made.
+	 */
+	private int handleDup(int fileDescriptor){
+		FileTable.Handle file = getDescriptor(fileDescriptor);
+		if(file == null)
+			return -1;
+		return allocateDescriptor(file.dup());
+	}
+
 	private int handleUnlink(int vaName){
 		String name = readVirtualMemoryString(vaName, 256);
 			if (name != null) {
-				//if(ThreadedKernel.fileSystem.remove(name) == true){
-				if(Machine.stubFileSystem().remove(name) == true){
+				//a file made later under this name must not share the old one
+				UserKernel.openFiles.forget(name);
+				if(ThreadedKernel.fileSystem.remove(name) == true){
+					fileChanged(name);
 					return 0;
 				}
 			}
@@ -659,82 +1030,91 @@ public class UserProcess {
 	}
 
 	private int handleRead(int fileDescriptor, int userBuffer, int count){
-		if(fileDescriptor < 0 || fileDescriptor > 15 || userBuffer <= 0 || count < 0){
-			 System.out.println("read params failed, user buffer is: " + userBuffer + " count is: " + count + " fd is: " + fileDescriptor);
+		if(fileDescriptor < 0 || userBuffer <= 0 || count < 0){
+			Lib.debug(dbgProcess, "\tread params failed, user buffer is: " + userBuffer + " count is: " + count + " fd is: " + fileDescriptor);
 			return -1;
 		}
 
-		byte[] localBuffer = new byte[pageSize];
-		//total bytes read counter
-		int totalBytes = 0;
-		if(fdTable[fileDescriptor] == null){
-			 System.out.println("null file");
+		OpenFile file = getDescriptor(fileDescriptor);
+		if(file == null){
+			Lib.debug(dbgProcess, "\tread from unused fd " + fileDescriptor);
 			return -1;
 		}
 
-			while(count >= pageSize){
-				int read = fdTable[fileDescriptor].read(localBuffer, 0, pageSize);
-				if(read != -1 
-					&& writeVirtualMemory(userBuffer, localBuffer, 0, read) == read){
-
-					userBuffer += read; //Advance userBuffer
-					totalBytes += read; //count total bytes
-					count -= pageSize;
-				}else{
-					System.out.println("breakpoint 1");
-					return -1;
-				}
-			}
-
-			int read = fdTable[fileDescriptor].read(localBuffer, 0, count);
-			if(read != -1 && writeVirtualMemory(userBuffer, localBuffer, 0, read) == read){
-
-						totalBytes += read;
-						System.out.println("read successful, totalBytes is: " + totalBytes);
-						return totalBytes;
-						//our read is reaching EoF, but instead of returning 0 bytes read it is conintuously returning 1 byte read. How do we ensure that it stops reading when reaching EoF??
-			}
-	//	}
-		System.out.println("read failed at end");
-		return -1;
-		//else, return -1
+		return transferFile(file, userBuffer, count, true);
 	}
 
 	int handleWrite(int fileDescriptor, int userBuffer, int count){
-		if(fileDescriptor < 0 || fileDescriptor > 15 || userBuffer <= 0 || count < 0){
+		if(fileDescriptor < 0 || userBuffer <= 0 || count < 0){
 			return -1;
 		}
 
-		byte[] localBuffer = new byte[pageSize];
-
-		int totalBytes = 0;
-		if(fdTable[fileDescriptor] == null){
+		OpenFile file = getDescriptor(fileDescriptor);
+		if(file == null){
 			return -1;
 		}
 
-			//read into open file into localbuffer, write local buffer to userbuffer
-			while(count >= pageSize){
-			
-				if(readVirtualMemory(userBuffer, localBuffer, 0, pageSize) == pageSize 
-					&& fdTable[fileDescriptor].write(localBuffer, 0, pageSize) != -1){
-				
-					userBuffer += pageSize; //Advance userBuffer
-					totalBytes += pageSize; //count total bytes
-					count -= pageSize;
-				}else{
+		if(file.getFileSystem() != null) //the console is never an executable
+			fileChanged(file.getName());
+
+		return transferFile(file, userBuffer, count, false);
+	}
+
+	/**
+	 * Transfer data between a file and a buffer in this process's virtual
+	 * memory, going straight between the file and the physical pages of the
+	 * buffer. The buffer is resolved by <tt>translateRange()</tt> a part at a
+	 * time, and each part is released before the next is resolved.
+	 *
+	 * @param file the file to read or write.
+	 * @param userBuffer the first byte of the buffer.
+	 * @param count the number of bytes to transfer.
+	 * @param reading <tt>true</tt> to read from the file into the buffer.
+	 * @return the number of bytes transferred, which is short if the file
+	 * ran out or the rest of the buffer is not valid, or -1 if the file
+	 * failed or no part of the buffer is valid.
+	 */
+	private int transferFile(OpenFile file, int userBuffer, int count, boolean reading){
+		byte[] memory = Machine.processor().getMemory();
+		int totalBytes = 0;
+
+		while(totalBytes < count){
+			int vaddr = userBuffer + totalBytes;
+			int numSegments = translateRange(vaddr, count - totalBytes, reading);
+			if(numSegments <= 0){
+				Lib.debug(dbgProcess, "\tbad buffer at 0x" + Lib.toHexString(vaddr));
+				return (totalBytes > 0) ? totalBytes : -1;
+			}
+
+			int resolved = 0;
+			boolean shortTransfer = false;
+			for(int i = 0; i < numSegments; i++){
+				resolved += segments[i*2 + 1];
+			}
+
+			for(int i = 0; i < numSegments; i++){
+				int paddr = segments[i*2], length = segments[i*2 + 1];
+
+				int amount = reading ? file.read(memory, paddr, length)
+						: file.write(memory, paddr, length);
+				if(amount == -1){
+					releaseRange(vaddr, resolved);
 					return -1;
 				}
-			}
 
-	
-			if(readVirtualMemory(userBuffer, localBuffer, 0, count) == count) { 
-					if(fdTable[fileDescriptor].write(localBuffer, 0, count) != -1){
-						totalBytes += count;
-						return totalBytes;
-					}
+				totalBytes += amount;
+				if(amount < length){ //end of file, or no more input for now
+					shortTransfer = true;
+					break;
+				}
 			}
-		System.out.println("write failed at end");
-		return -1;
+			releaseRange(vaddr, resolved);
+
+			if(shortTransfer)
+				break;
+		}
+
+		return totalBytes;
 	}
 
 	public int handleExec(int file, int argc, int argv){
@@ -789,6 +1169,126 @@ public class UserProcess {
 		return -1;
 	}
 
+	/**
+	 * Handle the fork() system call: start a child process running a copy of
+	 * this one. The child resumes from the syscall with the same registers,
+	 * except that fork() returns 0 in it, and shares this process's open files
+	 * and their positions, as if they had been passed to dup(). Memory
+	 * is not copied but shared copy-on-write; see <tt>forkSections()</tt>.
+	 * 
+	 * @return the child's process ID, or -1 if it could not be created.
+	 */
+	private int handleFork(){
+		UserProcess child = newUserProcess();
+
+		if(!forkSections(child)){
+			for(int i = 0; i < child.fdTable.length; i++)
+				child.handleClose(i);
+
+			//the constructor counted the child as running
+			UserKernel.processLock.acquire();
+			UserKernel.numProcesses--;
+			UserKernel.processLock.release();
+			return -1;
+		}
+
+		//the child gets the same descriptors, for the same open files
+		for(int i = 0; i < child.fdTable.length; i++)
+			child.handleClose(i);
+		child.fdTable = new FileTable.Handle[fdTable.length];
+		for(int i = usedDescriptors.nextSetBit(0); i >= 0; i = usedDescriptors.nextSetBit(i + 1))
+			child.fdTable[i] = fdTable[i].dup();
+		child.usedDescriptors = (BitSet) usedDescriptors.clone();
+
+		//the child returns 0 from the syscall instruction, as if it had made it
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for(int i = 0; i < Processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] = child.forkRegisters[Processor.regNextPC];
+		child.forkRegisters[Processor.regNextPC] += 4;
+
+		this.children.put(child.pID, child);
+		child.parent = this;
+		childrenExitStatus.put(child.pID, -1);
+
+		child.thread = new UThread(child);
+		child.thread.setName(thread.getName()).fork();
+
+		return child.pID;
+	}
+
+	/**
+	 * Handle the mmap() system call: map part of an open file into this
+	 * process's address space, at the lowest free addresses above the
+	 * program. Nothing is read yet; each page is read from the file when it is
+	 * first touched, and written back when the file is unmapped if it was
+	 * changed. The mapping has its own handle on the file, so it outlives the
+	 * file descriptor.
+	 * 
+	 * @return the address of the mapping, or -1 if it could not be made.
+	 */
+	private int handleMmap(int fileDescriptor, int offset, int length){
+		OpenFile file = getDescriptor(fileDescriptor);
+		if(file == null)
+			return -1;
+
+		//the console cannot be mapped, and a mapping starts on a page of the file
+		if(file.getFileSystem() == null || offset < 0 || offset % pageSize != 0 || length <= 0)
+			return -1;
+		if(offset + length < 0 || offset + length > file.length())
+			return -1;
+
+		int count = length / pageSize + (length % pageSize != 0 ? 1 : 0);
+
+		//first fit among the mappings, which are kept in order of address
+		int firstVPN = numPages;
+		int index = 0;
+		for(Mapping mapping : mappings){
+			if(mapping.firstVPN - firstVPN >= count)
+				break;
+			firstVPN = mapping.firstVPN + mapping.numPages;
+			index++;
+		}
+		if((long) (firstVPN + count) * pageSize > Integer.MAX_VALUE)
+			return -1;
+
+		OpenFile mapped = UserKernel.openFiles.open(file.getName(), false);
+		if(mapped == null)
+			return -1;
+
+		if(firstVPN + count > pageTable.length)
+			growPageTable(firstVPN + count);
+
+		mappings.add(index, new Mapping(mapped, offset, length, firstVPN, count));
+
+		Lib.debug(dbgProcess, "\tmapped " + file.getName() + " at page " + firstVPN);
+		return firstVPN * pageSize;
+	}
+
+	/**
+	 * Handle the munmap() system call: write back the changed pages of a file
+	 * mapped by mmap() and remove it from the address space.
+	 * 
+	 * @return 0 on success, or -1 if no file is mapped at the address.
+	 */
+	private int handleMunmap(int address){
+		for(Mapping mapping : mappings){
+			if(mapping.firstVPN * pageSize == address){
+				unmapFile(mapping);
+				return 0;
+			}
+		}
+		return -1;
+	}
+
+	private void unmapFile(Mapping mapping){
+		unmapPages(mapping.firstVPN, mapping.numPages);
+		mappings.remove(mapping);
+		mapping.file.close();
+	}
+
 	public int handleJoin(int processID, int statusAddr){
 		if(statusAddr < 0 || statusAddr > Machine.processor().getMemory().length-4){
 			return -1;
@@ -820,13 +1320,18 @@ public class UserProcess {
 		}
 	
 
-		for(int i = 0; i < fdTable.length; i++){
+		for(int i = usedDescriptors.nextSetBit(0); i >= 0; i = usedDescriptors.nextSetBit(i + 1)){
 			handleClose(i);
 		}
 
+		//changes to mapped files are written back before memory goes
+		while(!mappings.isEmpty())
+			unmapFile(mappings.getFirst());
+
 		unloadSections();
 
-		coff.close();
+		if(coff != null) //a forked process has no executable of its own
+			coff.close();
 
 		UserKernel.processLock.acquire();
 		UserKernel.numProcesses--;
@@ -841,7 +1346,8 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallMmap = 10, syscallFork = 13,
+			syscallMunmap = 14, syscallDup = 15;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -895,6 +1401,22 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, int offset, int length);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  munmap(char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  dup(int fd);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -929,6 +1451,14 @@ public class UserProcess {
 				return handleExec(a0, a1, a2);
 		case syscallJoin:
 				return handleJoin(a0, a1);
+		case syscallFork:
+				return handleFork();
+		case syscallMmap:
+				return handleMmap(a0, a1, a2);
+		case syscallMunmap:
+				return handleMunmap(a0);
+		case syscallDup:
+				return handleDup(a0);
 		
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -958,19 +1488,55 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionPageFault:
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (cause == Processor.exceptionPageFault && isMapped(vpn)) {
+				// the access is retried once the page is read in
+				if (!loadMappedPage(vpn))
+					handleExit(-1);
+				break;
+			}
+			if (cause == Processor.exceptionReadOnly && isCopyOnWrite(vpn)) {
+				// the write is retried once the page is our own
+				if (!breakCopyOnWrite(vpn))
+					handleExit(-1);
+				break;
+			}
+			// an access the page table really does not allow
+			unexpectedException(cause);
+			break;
+
 		default:
-			Lib.debug(dbgProcess, "Unexpected exception: "
-					+ Processor.exceptionNames[cause]);
-			Lib.assertNotReached("Unexpected exception");
+			unexpectedException(cause);
 		}
 	}
 
+	/**
+	 * Give up on an exception that this process has no way to handle.
+	 * 
+	 * @param cause the user exception that occurred.
+	 */
+	private void unexpectedException(int cause) {
+		Lib.debug(dbgProcess, "Unexpected exception: "
+				+ Processor.exceptionNames[cause]);
+		Lib.assertNotReached("Unexpected exception");
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
+	/**
+	 * Which pages are mapped read-only only because their frames are shared
+	 * with a process forked from, or forking, this one. <tt>null</tt> until
+	 * the first fork.
+	 */
+	protected boolean[] copyOnWrite = null;
+
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
@@ -984,7 +1550,28 @@ public class UserProcess {
 
 	private int argc, argv;
 
-	public OpenFile fdTable[] = new OpenFile[16];	
+	/** The name and length of the executable, identifying its image. */
+	private String imageName;
+
+	private int imageLength;
+
+	/**
+	 * The shared image of the executable's read-only pages, if this process
+	 * is one of its users.
+	 */
+	private ImageCache.Image image = null;
+
+	/** The registers a forked process starts with, until it first runs. */
+	private int[] forkRegisters = null;
+
+	/** The files mapped by <tt>mmap()</tt>, in order of address. */
+	private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+
+	/** The open files, by descriptor; grown as more are opened. */
+	public FileTable.Handle fdTable[] = new FileTable.Handle[16];	
+
+	/** The descriptors in use, so the lowest free one is found quickly. */
+	private BitSet usedDescriptors = new BitSet();
 
 	public int pID;
 
@@ -996,6 +1583,39 @@ public class UserProcess {
 
 	public HashMap<Integer, UserProcess> children;
 
+	/**
+	 * Part of a file mapped into the address space by <tt>mmap()</tt>.
+	 */
+	private static class Mapping {
+		Mapping(OpenFile file, int offset, int length, int firstVPN,
+				int numPages) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+		}
+
+		/** The mapping's own handle on the file. */
+		OpenFile file;
+
+		/** The position in the file of the first byte mapped. */
+		int offset;
+
+		/** The number of bytes mapped. */
+		int length;
+
+		int firstVPN;
+
+		int numPages;
+	}
+
+	/**
+	 * The segments found by the last <tt>translateRange()</tt>, kept to be
+	 * reused by the next one.
+	 */
+	protected int[] segments = null;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
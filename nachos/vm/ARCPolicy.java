@@ -0,0 +1,186 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Adaptive replacement. Resident pages are split between a list of pages
+ * referenced once since they were loaded, <i>T1</i>, and a list of pages
+ * referenced again, <i>T2</i>. Ghost lists <i>B1</i> and <i>B2</i> remember
+ * recently evicted pages from each. A fault on a page in <i>B1</i> means
+ * <i>T1</i> is too small, and one in <i>B2</i> means <i>T2</i> is, so the
+ * target size of <i>T1</i> adapts to the mix of recency and frequency in the
+ * workload.
+ *
+ * <p>
+ * ARC as published moves a page to the front of a list on every hit, but the
+ * kernel never sees a hit: the processor only sets a page's used bit. So each
+ * list is kept as a clock instead, as in CAR (Bansal and Modha, "CAR: Clock
+ * with Adaptive Replacement"). A referenced page at the head of <i>T1</i> is
+ * promoted to <i>T2</i>, and one at the head of <i>T2</i> gets a second
+ * chance.
+ */
+public class ARCPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new adaptive replacement policy.
+	 */
+	public ARCPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+
+		list = new int[numFrames];
+		next = new int[numFrames];
+		prev = new int[numFrames];
+	}
+
+	/**
+	 * Put a newly loaded page in <i>T1</i>, or in <i>T2</i> if it was
+	 * recently evicted, adapting the target size of <i>T1</i> towards the
+	 * ghost list it was found in.
+	 */
+	public void pageLoaded(int ppn) {
+		long key = key(ppn);
+
+		if (b1.containsKey(key)) {
+			target = Math.min(target + Math.max(1, b2.size() / b1.size()),
+					numFrames);
+			b1.remove(key);
+			append(t2, ppn);
+		}
+		else if (b2.containsKey(key)) {
+			target = Math.max(target - Math.max(1, b1.size() / b2.size()), 0);
+			b2.remove(key);
+			append(t2, ppn);
+		}
+		else {
+			// keep the ghost lists to no more than one memory's worth each
+			if (size[t1] + b1.size() >= numFrames && !b1.isEmpty())
+				removeEldest(b1);
+			else if (size[t1] + size[t2] + b1.size() + b2.size() >= 2 * numFrames
+					&& !b2.isEmpty())
+				removeEldest(b2);
+
+			append(t1, ppn);
+		}
+	}
+
+	public void pageEvicted(int ppn) {
+		int from = list[ppn];
+		unlink(ppn);
+
+		(from == t1 ? b1 : b2).put(key(ppn), true);
+	}
+
+	public void pageFreed(int ppn) {
+		unlink(ppn);
+	}
+
+	/**
+	 * Take the victim from <i>T1</i> if it is at least its target size, and
+	 * from <i>T2</i> otherwise. A list found to hold only pinned pages is
+	 * passed over for the other.
+	 */
+	public int chooseVictim() {
+		int pinnedT1 = 0, pinnedT2 = 0;
+
+		for (int step = 0; step < 3 * numFrames; step++) {
+			boolean useT1 = size[t1] >= Math.max(1, target);
+			if (useT1 ? pinnedT1 >= size[t1] : pinnedT2 >= size[t2])
+				useT1 = !useT1;
+			if (useT1 ? pinnedT1 >= size[t1] : pinnedT2 >= size[t2])
+				return -1;
+
+			int from = useT1 ? t1 : t2;
+			int ppn = head[from];
+
+			if (VMKernel.isPinned(ppn)) {
+				head[from] = next[ppn];
+				if (useT1)
+					pinnedT1++;
+				else
+					pinnedT2++;
+			}
+			else if (VMKernel.testAndClearUsed(ppn)) {
+				if (from == t1) {
+					unlink(ppn);
+					append(t2, ppn);
+				}
+				else {
+					head[from] = next[ppn];
+				}
+			}
+			else {
+				return ppn;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return the key identifying the page in a frame in the ghost lists. Keys
+	 * use the process ID, which is never reused, rather than the process
+	 * itself, so that ghosts do not keep exited processes alive.
+	 */
+	private static long key(int ppn) {
+		return ((long) VMKernel.getFrameOwner(ppn).pID << 32)
+				| VMKernel.getFrameVPN(ppn);
+	}
+
+	private static void removeEldest(LinkedHashMap<Long, Boolean> ghosts) {
+		Iterator<Long> i = ghosts.keySet().iterator();
+		i.next();
+		i.remove();
+	}
+
+	/** Add a frame at the tail of a clock list. */
+	private void append(int l, int ppn) {
+		list[ppn] = l;
+
+		if (size[l]++ == 0) {
+			head[l] = next[ppn] = prev[ppn] = ppn;
+			return;
+		}
+
+		int tail = prev[head[l]];
+		next[tail] = ppn;
+		prev[ppn] = tail;
+		next[ppn] = head[l];
+		prev[head[l]] = ppn;
+	}
+
+	/** Remove a frame from the clock list it is in, if any. */
+	private void unlink(int ppn) {
+		int l = list[ppn];
+		if (l == none)
+			return;
+
+		list[ppn] = none;
+
+		if (--size[l] == 0)
+			return;
+
+		next[prev[ppn]] = next[ppn];
+		prev[next[ppn]] = prev[ppn];
+		if (head[l] == ppn)
+			head[l] = next[ppn];
+	}
+
+	private static final int none = 0, t1 = 1, t2 = 2;
+
+	private int numFrames;
+
+	/** The target size of <i>T1</i>. */
+	private int target = 0;
+
+	/** The clock list each frame is in, and its neighbors there. */
+	private int[] list, next, prev;
+
+	private int[] head = new int[3], size = new int[3];
+
+	/** The ghost lists, least recently evicted first. */
+	private LinkedHashMap<Long, Boolean> b1 = new LinkedHashMap<Long, Boolean>();
+
+	private LinkedHashMap<Long, Boolean> b2 = new LinkedHashMap<Long, Boolean>();
+}
@@ -0,0 +1,56 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock, or second-chance, replacement policy. A hand sweeps over the
+ * frames; a page that has been referenced since the hand last passed it has its
+ * used bit cleared and is skipped, and the first page that has not is the
+ * victim.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+		resident = new boolean[numFrames];
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+	}
+
+	public void pageEvicted(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	/**
+	 * Advance the hand to the first unreferenced page. After one sweep every
+	 * used bit has been cleared, so two sweeps are enough unless every page is
+	 * pinned.
+	 */
+	public int chooseVictim() {
+		for (int scanned = 0; scanned < 2 * numFrames; scanned++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (resident[ppn] && !VMKernel.isPinned(ppn)
+					&& !VMKernel.testAndClearUsed(ppn))
+				return ppn;
+		}
+
+		return -1;
+	}
+
+	private int numFrames;
+
+	/** Which frames hold a page. */
+	private boolean[] resident;
+
+	private int hand = 0;
+}
@@ -0,0 +1,55 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which resident page the page-out thread evicts next. A policy works
+ * on physical page numbers, and finds out what a frame holds from the inverted
+ * page table in <tt>VMKernel</tt>, so it never has to look through the page
+ * tables of every process. Whether a page has been referenced or modified
+ * comes from the <tt>used</tt> and <tt>dirty</tt> bits the processor sets, read
+ * with <tt>VMKernel.testAndClearUsed()</tt> and <tt>VMKernel.isDirty()</tt>.
+ *
+ * <p>
+ * The policy used is chosen by the <tt>VMKernel.replacementPolicy</tt> key,
+ * which names a class with a no-argument constructor. Every method is called
+ * with <tt>VMKernel.memoryLock</tt> held.
+ *
+ * @see nachos.vm.ClockPolicy
+ * @see nachos.vm.WSClockPolicy
+ * @see nachos.vm.ARCPolicy
+ */
+public interface ReplacementPolicy {
+	/**
+	 * Called when a page is given a frame, on a page fault.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * Called when the page in a frame is evicted, whether it was chosen by
+	 * <tt>chooseVictim()</tt> or paged out in the same cluster as a page that
+	 * was.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageEvicted(int ppn);
+
+	/**
+	 * Called when the page in a frame is thrown away because its process
+	 * exited.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pageFreed(int ppn);
+
+	/**
+	 * Choose a resident, unpinned page to evict. The frame stays resident
+	 * until <tt>pageEvicted()</tt> is called for it.
+	 *
+	 * @return the physical page number of the victim, or <tt>-1</tt> if every
+	 * resident page is pinned.
+	 */
+	public int chooseVictim();
+}
@@ -0,0 +1,142 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+
+/**
+ * A swap file, holding the pages of user processes that have been paged out of
+ * physical memory. The file is divided into page-sized slots, and a bitmap
+ * records which slots are in use. Runs of adjacent slots can be allocated
+ * together, so that a cluster of pages is written with a single file access.
+ *
+ * <p>
+ * The swap file does no locking of its own; callers must hold
+ * <tt>VMKernel.memoryLock</tt> to allocate or free slots.
+ */
+public class SwapFile {
+	/**
+	 * Allocate a new swap file. The file itself is not created until the
+	 * first page is written to it.
+	 *
+	 * @param name the name of the file in the kernel file system.
+	 */
+	public SwapFile(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Allocate a run of adjacent slots.
+	 *
+	 * @param count the number of slots to allocate.
+	 * @return the first slot of the run.
+	 */
+	public int allocate(int count) {
+		Lib.assertTrue(count > 0);
+
+		int first = used.nextClearBit(0);
+		while (true) {
+			int end = used.nextSetBit(first);
+			if (end < 0 || end - first >= count)
+				break;
+
+			first = used.nextClearBit(end);
+		}
+
+		used.set(first, first + count);
+		return first;
+	}
+
+	/**
+	 * Free a slot.
+	 *
+	 * @param slot the slot to free.
+	 */
+	public void free(int slot) {
+		Lib.assertTrue(used.get(slot));
+		used.clear(slot);
+	}
+
+	/**
+	 * Read a page from a slot into physical memory.
+	 *
+	 * @param slot the slot to read.
+	 * @param ppn the physical page to read it into.
+	 * @return <tt>true</tt> if the whole page was read.
+	 */
+	public boolean read(int slot, int ppn) {
+		Lib.debug(dbgVM, "\tswap read slot " + slot + " into frame " + ppn);
+
+		Machine.stats().numSwapReads++;
+
+		return file.read(slot * pageSize, Machine.processor().getMemory(),
+				ppn * pageSize, pageSize) == pageSize;
+	}
+
+	/**
+	 * Write a run of pages to adjacent slots with a single file access.
+	 *
+	 * @param slot the first slot of the run.
+	 * @param buf the buffer holding the pages, one after another.
+	 * @param offset the offset of the first page in <tt>buf</tt>.
+	 * @param count the number of pages to write.
+	 * @return <tt>true</tt> if all of the pages were written.
+	 */
+	public boolean write(int slot, byte[] buf, int offset, int count) {
+		Lib.debug(dbgVM, "\tswap write " + count + " pages at slot " + slot);
+
+		if (file == null) {
+			file = fileSystem().open(name, true);
+			Lib.assertTrue(file != null, "unable to create swap file " + name);
+		}
+
+		Machine.stats().numSwapWrites += count;
+
+		return file.write(slot * pageSize, buf, offset, count * pageSize) == count
+				* pageSize;
+	}
+
+	/**
+	 * Return the number of slots in use.
+	 *
+	 * @return the number of slots in use.
+	 */
+	public int getNumUsed() {
+		return used.cardinality();
+	}
+
+	/**
+	 * Close and delete the swap file.
+	 */
+	public void close() {
+		if (file == null)
+			return;
+
+		file.close();
+		file = null;
+		fileSystem().remove(name);
+	}
+
+	/**
+	 * Return the file system holding the swap file. Pages are already cached
+	 * in memory, so the swap file bypasses the buffer cache.
+	 */
+	private static FileSystem fileSystem() {
+		if (ThreadedKernel.bufferCache != null)
+			return ThreadedKernel.bufferCache.getFileSystem();
+		else
+			return ThreadedKernel.fileSystem;
+	}
+
+	private String name;
+
+	private OpenFile file = null;
+
+	/** The slots in use. */
+	private BitSet used = new BitSet();
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
@@ -5,8 +5,18 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Every physical page holding a user page is recorded in a global inverted
+ * page table, along with the process and virtual page it holds and how many
+ * times it is pinned. A page-out thread keeps at least
+ * <tt>VMKernel.lowWatermark</tt> frames free by evicting pages chosen by the
+ * <tt>ReplacementPolicy</tt>, writing dirty ones to swap in clusters of
+ * adjacent pages, so that page faults rarely have to wait for a write.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -21,6 +31,48 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		asidLock = new Lock();
+		for (int i = 0; i < Processor.numASIDs; i++)
+			freeASIDs.add(i);
+
+		numPhysPages = Machine.processor().getNumPhysPages();
+
+		memoryLock = new Lock();
+		framesFreed = new Condition(memoryLock);
+		pageOutNeeded = new Condition(memoryLock);
+		pageOutDone = new Condition(memoryLock);
+
+		frameOwners = new VMProcess[numPhysPages];
+		frameVPNs = new int[numPhysPages];
+		framePins = new int[numPhysPages];
+
+		lowWatermark = Config.getInteger("VMKernel.lowWatermark",
+				Math.max(1, numPhysPages / 8));
+		highWatermark = Config.getInteger("VMKernel.highWatermark",
+				Math.max(lowWatermark + 1, numPhysPages / 4));
+		clusterSize = Config.getInteger("VMKernel.swapCluster", 8);
+		Lib.assertTrue(lowWatermark > 0 && highWatermark > lowWatermark
+				&& highWatermark < numPhysPages && clusterSize > 0);
+
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockPolicy");
+		policy = (ReplacementPolicy) Lib.constructObject(policyName);
+
+		swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
+
+		pageOutBuffer = new byte[(highWatermark + clusterSize)
+				* Processor.pageSize];
+		batchOwners = new VMProcess[highWatermark + clusterSize];
+		batchFirstVPNs = new int[highWatermark + clusterSize];
+		batchLengths = new int[highWatermark + clusterSize];
+		batchSlots = new int[highWatermark + clusterSize];
+
+		new KThread(new Runnable() {
+			public void run() {
+				pageOut();
+			}
+		}).setName("page-out").fork();
 	}
 
 	/**
@@ -38,12 +90,398 @@ public class VMKernel extends UserKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Never returns. Waits for the page-out thread to
+	 * finish writing its current batch, and keeps it from starting another,
+	 * before closing swap.
 	 */
 	public void terminate() {
+		if (!memoryLock.isHeldByCurrentThread())
+			memoryLock.acquire();
+
+		terminating = true;
+		while (pageOutBusy)
+			pageOutDone.sleep();
+
+		swap.close();
+
 		super.terminate();
 	}
 
+	/**
+	 * Allocate an address space identifier for a new process.
+	 *
+	 * @param process the process that will own the ASID.
+	 * @return the ASID, or <tt>-1</tt> if all of them are in use.
+	 */
+	public static int allocateASID(VMProcess process) {
+		asidLock.acquire();
+		int asid = freeASIDs.isEmpty() ? -1 : freeASIDs.removeFirst();
+		if (asid != -1)
+			asidOwners[asid] = process;
+		asidLock.release();
+
+		return asid;
+	}
+
+	/**
+	 * Return an address space identifier to the free list. The caller must
+	 * have invalidated any TLB entries tagged with it.
+	 *
+	 * @param asid the ASID to free.
+	 */
+	public static void freeASID(int asid) {
+		asidLock.acquire();
+		asidOwners[asid] = null;
+		freeASIDs.add(asid);
+		asidLock.release();
+	}
+
+	/**
+	 * Return the process that owns an address space identifier.
+	 *
+	 * @param asid the ASID.
+	 * @return the owning process, or <tt>null</tt> if the ASID is free.
+	 */
+	public static VMProcess getASIDOwner(int asid) {
+		return asidOwners[asid];
+	}
+
+	/**
+	 * Allocate a physical page to hold a page of a process, waiting for the
+	 * page-out thread to free one if memory is full. The frame is returned
+	 * pinned. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param process the process the page belongs to.
+	 * @param vpn the virtual page number of the page.
+	 * @return the physical page number, or <tt>-1</tt> if every frame is
+	 * pinned.
+	 */
+	static int allocateFrame(VMProcess process, int vpn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		while (true) {
+			int[] ppns = frames.allocate(1);
+			if (ppns != null) {
+				if (frames.getNumFree() < lowWatermark)
+					pageOutNeeded.wake();
+
+				int ppn = ppns[0];
+				frameOwners[ppn] = process;
+				frameVPNs[ppn] = vpn;
+				pinFrame(ppn);
+
+				policy.pageLoaded(ppn);
+
+				return ppn;
+			}
+
+			if (numPinned == numPhysPages)
+				return -1;
+
+			pageOutNeeded.wake();
+			framesFreed.sleep();
+		}
+	}
+
+	/**
+	 * Return the frame of a page that is going away, because its process is
+	 * exiting or its file is unmapped, to the free pool.
+	 * The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	static void freeFrame(int ppn) {
+		policy.pageFreed(ppn);
+		releaseFrame(ppn);
+	}
+
+	/**
+	 * Return the frame of an evicted page to the free pool.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	private static void evictFrame(int ppn) {
+		policy.pageEvicted(ppn);
+		releaseFrame(ppn);
+	}
+
+	private static void releaseFrame(int ppn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue(framePins[ppn] == 0);
+
+		frameOwners[ppn] = null;
+		frames.freeContiguous(ppn, 1);
+
+		framesFreed.wakeAll();
+	}
+
+	/**
+	 * Keep a frame from being evicted. The caller must hold
+	 * <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	static void pinFrame(int ppn) {
+		if (framePins[ppn]++ == 0)
+			numPinned++;
+	}
+
+	/**
+	 * Undo one <tt>pinFrame()</tt>. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	static void unpinFrame(int ppn) {
+		Lib.assertTrue(framePins[ppn] > 0);
+
+		if (--framePins[ppn] == 0) {
+			if (numPinned-- == numPhysPages)
+				framesFreed.wakeAll();
+
+			// the page-out thread may have given up with every frame pinned
+			if (frames.getNumFree() < lowWatermark)
+				pageOutNeeded.wake();
+		}
+	}
+
+	/**
+	 * Wait until some frame is not pinned, so that a page can be given a
+	 * frame. The caller must hold <tt>memoryLock</tt>.
+	 */
+	static void waitForUnpinnedFrame() {
+		while (numPinned == numPhysPages)
+			framesFreed.sleep();
+	}
+
+	/**
+	 * Return whether a frame is pinned. The caller must hold
+	 * <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame cannot be evicted.
+	 */
+	static boolean isPinned(int ppn) {
+		return framePins[ppn] > 0;
+	}
+
+	/**
+	 * Return the process whose page is in a frame. The caller must hold
+	 * <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the owning process, or <tt>null</tt> if the frame is free.
+	 */
+	static VMProcess getFrameOwner(int ppn) {
+		return frameOwners[ppn];
+	}
+
+	/**
+	 * Return the virtual page number of the page in a frame. The caller must
+	 * hold <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number, which must not be free.
+	 * @return the virtual page number.
+	 */
+	static int getFrameVPN(int ppn) {
+		return frameVPNs[ppn];
+	}
+
+	/**
+	 * Return whether the page in a frame has been referenced since the last
+	 * call, and clear its used bit. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number, which must not be free.
+	 * @return <tt>true</tt> if the page was referenced.
+	 */
+	static boolean testAndClearUsed(int ppn) {
+		return frameOwners[ppn].testAndClearUsed(frameVPNs[ppn]);
+	}
+
+	/**
+	 * Return whether the page in a frame has been modified since it was
+	 * filled. The caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param ppn the physical page number, which must not be free.
+	 * @return <tt>true</tt> if the page must be written to swap to evict it.
+	 */
+	static boolean isDirty(int ppn) {
+		return frameOwners[ppn].isDirty(frameVPNs[ppn]);
+	}
+
+	/**
+	 * The body of the page-out thread. Whenever fewer than
+	 * <tt>lowWatermark</tt> frames are free, evict pages until
+	 * <tt>highWatermark</tt> are.
+	 */
+	private static void pageOut() {
+		memoryLock.acquire();
+
+		while (true) {
+			while (frames.getNumFree() >= lowWatermark || terminating)
+				pageOutNeeded.sleep();
+
+			if (!evictBatch()) {
+				// everything is pinned; wait for the next fault to try again
+				pageOutNeeded.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Evict a batch of victims chosen by the replacement policy. Clean pages
+	 * are simply dropped, since they can be read again from where they came
+	 * from. Each dirty victim is written to swap together with the dirty,
+	 * unreferenced pages next to it in its address space, as one cluster of
+	 * adjacent slots. The frames are freed as soon as the pages have been
+	 * copied out, before the writes, and <tt>memoryLock</tt> is released while
+	 * writing.
+	 *
+	 * @return <tt>true</tt> if any page was evicted.
+	 */
+	private static boolean evictBatch() {
+		int wanted = highWatermark - frames.getNumFree();
+		int numEvicted = 0, numClusters = 0, bufferPages = 0;
+
+		while (numEvicted < wanted
+				&& bufferPages + clusterSize <= batchOwners.length) {
+			int ppn = policy.chooseVictim();
+			if (ppn == -1)
+				break;
+
+			VMProcess owner = frameOwners[ppn];
+			int vpn = frameVPNs[ppn];
+
+			if (!owner.isDirty(vpn)) {
+				owner.unmap(vpn);
+				evictFrame(ppn);
+				numEvicted++;
+				continue;
+			}
+
+			// extend the cluster over dirty neighbors not recently used
+			int first = vpn, last = vpn;
+			while (last - first + 1 < clusterSize
+					&& owner.isClusterable(last + 1))
+				last++;
+			while (last - first + 1 < clusterSize
+					&& owner.isClusterable(first - 1))
+				first--;
+
+			int length = last - first + 1;
+			int slot = swap.allocate(length);
+
+			for (int i = 0; i < length; i++) {
+				int page = owner.getPPN(first + i);
+
+				owner.unmap(first + i);
+				owner.setSwapSlot(first + i, slot + i);
+				owner.pagingOut[first + i] = true;
+
+				System.arraycopy(Machine.processor().getMemory(), page
+						* Processor.pageSize, pageOutBuffer, (bufferPages + i)
+						* Processor.pageSize, Processor.pageSize);
+				evictFrame(page);
+			}
+
+			batchOwners[numClusters] = owner;
+			batchFirstVPNs[numClusters] = first;
+			batchLengths[numClusters] = length;
+			batchSlots[numClusters] = slot;
+			numClusters++;
+
+			bufferPages += length;
+			numEvicted += length;
+		}
+
+		if (numClusters > 0) {
+			pageOutBusy = true;
+			memoryLock.release();
+
+			for (int i = 0, offset = 0; i < numClusters; i++) {
+				boolean written = swap.write(batchSlots[i], pageOutBuffer,
+						offset, batchLengths[i]);
+				Lib.assertTrue(written, "swap write failed");
+				offset += batchLengths[i] * Processor.pageSize;
+			}
+
+			memoryLock.acquire();
+
+			for (int i = 0; i < numClusters; i++) {
+				for (int j = 0; j < batchLengths[i]; j++)
+					batchOwners[i].pagingOut[batchFirstVPNs[i] + j] = false;
+				batchOwners[i] = null;
+			}
+
+			pageOutBusy = false;
+			pageOutDone.wakeAll();
+		}
+
+		return numEvicted > 0;
+	}
+
+	/**
+	 * Protects the inverted page table, the swap file's slots, and the
+	 * residency of every VM process's pages.
+	 */
+	static Lock memoryLock;
+
+	/** Signalled when frames are freed, or stop all being pinned. */
+	private static Condition framesFreed;
+
+	/** Signalled when the page-out thread should run. */
+	private static Condition pageOutNeeded;
+
+	/** Signalled when pages being paged out have reached swap. */
+	static Condition pageOutDone;
+
+	/** Whether the page-out thread is writing a batch to swap. */
+	private static boolean pageOutBusy = false;
+
+	/** Set once the kernel is terminating, to stop further page-outs. */
+	private static boolean terminating = false;
+
+	/** The swap file. */
+	static SwapFile swap;
+
+	private static int numPhysPages;
+
+	/**
+	 * The inverted page table: the process and virtual page held by each
+	 * frame, and how many times the frame is pinned.
+	 */
+	private static VMProcess[] frameOwners;
+
+	private static int[] frameVPNs;
+
+	private static int[] framePins;
+
+	/** The number of frames with a non-zero pin count. */
+	private static int numPinned = 0;
+
+	/** Chooses the pages to evict. */
+	private static ReplacementPolicy policy;
+
+	private static int lowWatermark, highWatermark, clusterSize;
+
+	/**
+	 * The pages of the current page-out batch, and the clusters they are
+	 * written in.
+	 */
+	private static byte[] pageOutBuffer;
+
+	private static VMProcess[] batchOwners;
+
+	private static int[] batchFirstVPNs, batchLengths, batchSlots;
+
+	/** Protects <tt>freeASIDs</tt>. */
+	private static Lock asidLock;
+
+	/** Address space identifiers not used by any process. */
+	private static LinkedList<Integer> freeASIDs = new LinkedList<Integer>();
+
+	/** The process that owns each ASID. */
+	private static VMProcess[] asidOwners = new VMProcess[Processor.numASIDs];
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
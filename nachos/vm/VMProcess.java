@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -18,7 +20,8 @@ public class VMProcess extends UserProcess {
 
 	/**
 	 * Save the state of this process in preparation for a context switch.
-	 * Called by <tt>UThread.saveState()</tt>.
+	 * Called by <tt>UThread.saveState()</tt>. The TLB is not flushed, since
+	 * its entries are tagged with this process's ASID.
 	 */
 	public void saveState() {
 		super.saveState();
@@ -29,43 +32,641 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		Processor processor = Machine.processor();
+
+		if (processor.hasTLB()) {
+			// an exiting process can still block once its ASID is freed
+			if (asid != -1)
+				processor.setASID(asid);
+		}
+		else
+			super.restoreState();
+	}
+
+	/**
+	 * Transfer data from this process's virtual memory to the specified array,
+	 * paging in any page of the range that is not in memory.
+	 *
+	 * @param vaddr the first byte of virtual memory to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to transfer from virtual memory to the
+	 * array.
+	 * @return the number of bytes successfully transferred.
+	 */
+	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return transfer(vaddr, data, offset, length, false);
+	}
+
+	/**
+	 * Transfer data from the specified array to this process's virtual memory,
+	 * paging in any page of the range that is not in memory.
+	 *
+	 * @param vaddr the first byte of virtual memory to write.
+	 * @param data the array containing the data to transfer.
+	 * @param offset the first byte to transfer from the array.
+	 * @param length the number of bytes to transfer from the array to virtual
+	 * memory.
+	 * @return the number of bytes successfully transferred.
+	 */
+	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return transfer(vaddr, data, offset, length, true);
+	}
+
+	private int transfer(int vaddr, byte[] data, int offset, int length,
+			boolean writing) {
+		if (data == null || offset < 0 || length < 0
+				|| offset + length > data.length || vaddr < 0)
+			return 0;
+
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			if (!isValidPage(vpn))
+				break;
+
+			TranslationEntry entry = pageTable[vpn];
+			if (writing && entry.readOnly)
+				break;
+
+			int ppn = pinPage(vpn);
+			if (ppn == -1)
+				break;
+
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+			int paddr = ppn * pageSize + pageOffset;
+			int count = Math.min(length - amount, pageSize - pageOffset);
+
+			entry.used = true;
+			if (writing) {
+				entry.dirty = true;
+				System.arraycopy(data, offset + amount, memory, paddr, count);
+			}
+			else {
+				System.arraycopy(memory, paddr, data, offset + amount, count);
+			}
+
+			unpinPage(vpn);
+
+			amount += count;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Page in and pin the first page of the range, and resolve only the part
+	 * of the range on that page, so that a transfer holds at most one frame
+	 * however large its buffer is. The page stays pinned until
+	 * <tt>releaseRange()</tt>.
+	 */
+	protected int translateRange(int vaddr, int length, boolean write) {
+		if (vaddr < 0 || length <= 0 || vaddr + length < 0)
+			return super.translateRange(vaddr, length, write);
+
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (!isValidPage(vpn))
+			return -1;
+
+		waitForPage(vpn);
+
+		int numSegments = super.translateRange(vaddr, Math.min(length,
+				pageSize - Processor.offsetFromAddress(vaddr)), write);
+		if (numSegments < 0)
+			unpinPage(vpn);
+
+		return numSegments;
+	}
+
+	/**
+	 * Unpin the page pinned by <tt>translateRange()</tt>.
+	 */
+	protected void releaseRange(int vaddr, int length) {
+		if (length <= 0)
+			return;
+
+		unpinPage(Processor.pageFromAddress(vaddr));
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
-	 * 
+	 * demand-paged. No page is read or even given physical memory until it is
+	 * first touched.
+	 *
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		asid = VMKernel.allocateASID(this);
+		if (asid == -1) {
+			Lib.debug(dbgVM, "\tout of address space identifiers");
+			coff.close();
+			return false;
+		}
+
+		pageTable = new TranslationEntry[numPages];
+		pageSections = new CoffSection[numPages];
+		swapSlots = new int[numPages];
+		pagingOut = new boolean[numPages];
+
+		Arrays.fill(swapSlots, -1);
+
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+					false, false);
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+
+				pageTable[vpn].readOnly = section.isReadOnly();
+				pageSections[vpn] = section;
+			}
+		}
+
+		return true;
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>: the frames
+	 * of resident pages and the swap slots of paged-out ones.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		if (asid == -1)
+			return;
+
+		VMKernel.memoryLock.acquire();
+
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				entry.valid = false;
+				VMKernel.freeFrame(entry.ppn);
+			}
+
+			// a slot still being written is only reused after the write
+			if (swapSlots[vpn] != -1) {
+				VMKernel.swap.free(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		VMKernel.memoryLock.release();
+
+		// entries tagged with our ASID would be valid for its next owner
+		Processor processor = Machine.processor();
+		if (processor.hasTLB()) {
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry entry = processor.readTLBEntry(i);
+				if (entry.valid && entry.asid == asid) {
+					entry.valid = false;
+					processor.writeTLBEntry(i, entry);
+				}
+			}
+		}
+
+		VMKernel.freeASID(asid);
+		asid = -1;
+	}
+
+	/**
+	 * Refuse to fork. A frame holds the page of a single process as far as
+	 * the inverted page table and the swap file are concerned, so pages
+	 * cannot be shared copy-on-write here.
+	 *
+	 * @return <tt>false</tt>.
+	 */
+	protected boolean forkSections(UserProcess child) {
+		Lib.debug(dbgVM, "\tfork is not supported with demand paging");
+		return false;
+	}
+
+	/**
+	 * Extend the page table for a mapped file, along with the rest of the
+	 * per-page state. The page-out thread is kept out while the arrays are
+	 * replaced.
+	 */
+	protected void growPageTable(int length) {
+		VMKernel.memoryLock.acquire();
+
+		int oldLength = pageTable.length;
+		super.growPageTable(length);
+
+		pageSections = Arrays.copyOf(pageSections, length);
+		swapSlots = Arrays.copyOf(swapSlots, length);
+		pagingOut = Arrays.copyOf(pagingOut, length);
+		Arrays.fill(swapSlots, oldLength, length, -1);
+
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Remove the pages of a mapped file from memory and swap. A page that was
+	 * changed, whether it is still dirty in memory or was paged out to swap,
+	 * is brought in and written back to the file first.
+	 */
+	protected void unmapPages(int firstVPN, int count) {
+		for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+			VMKernel.memoryLock.acquire();
+			while (pagingOut[vpn])
+				VMKernel.pageOutDone.sleep();
+
+			boolean changed = swapSlots[vpn] != -1
+					|| (pageTable[vpn].valid && isDirty(vpn));
+			VMKernel.memoryLock.release();
+
+			if (changed) {
+				// the changes must not be lost, so wait for a frame to write
+				// them back from if every frame is pinned
+				int ppn = waitForPage(vpn);
+				writeMappedPage(vpn, ppn);
+				unpinPage(vpn);
+			}
+
+			VMKernel.memoryLock.acquire();
+			while (pagingOut[vpn])
+				VMKernel.pageOutDone.sleep();
+
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				unmap(vpn);
+				VMKernel.freeFrame(entry.ppn);
+			}
+
+			if (swapSlots[vpn] != -1) {
+				VMKernel.swap.free(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+
+			VMKernel.memoryLock.release();
+		}
+	}
+
+	/**
+	 * Return whether a virtual page is part of this process: the program, its
+	 * stack and arguments, or a mapped file.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page can be paged in.
+	 */
+	private boolean isValidPage(int vpn) {
+		return vpn >= 0 && (vpn < numPages || isMapped(vpn));
+	}
+
+	/**
+	 * Make sure a page of this process is in physical memory and pin it there.
+	 * A page that is not in memory is given a frame and filled from swap if it
+	 * has been paged out, and otherwise from the executable or its mapped
+	 * file, or with zeros for the stack and arguments. A page still being
+	 * written to swap is waited for.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the physical page number, or <tt>-1</tt> if there was no
+	 * physical memory for the page.
+	 */
+	protected int pinPage(int vpn) {
+		VMKernel.memoryLock.acquire();
+
+		while (pagingOut[vpn])
+			VMKernel.pageOutDone.sleep();
+
+		TranslationEntry entry = pageTable[vpn];
+		if (entry.valid) {
+			VMKernel.pinFrame(entry.ppn);
+			VMKernel.memoryLock.release();
+			return entry.ppn;
+		}
+
+		int ppn = VMKernel.allocateFrame(this, vpn);
+		int slot = swapSlots[vpn];
+
+		VMKernel.memoryLock.release();
+
+		if (ppn == -1)
+			return -1;
+
+		// the frame is pinned and not yet mapped, so it is ours to fill
+		CoffSection section = pageSections[vpn];
+		if (slot != -1) {
+			boolean read = VMKernel.swap.read(slot, ppn);
+			Lib.assertTrue(read, "swap read failed");
+		}
+		else if (section != null) {
+			Lib.debug(dbgVM, "\tloading page " + vpn + " of "
+					+ section.getName() + " into frame " + ppn);
+
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			Machine.stats().numCOFFReads++;
+		}
+		else if (isMapped(vpn)) {
+			readMappedPage(vpn, ppn);
+		}
+		else {
+			Lib.debug(dbgVM, "\tzero-filling page " + vpn + " in frame " + ppn);
+
+			Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+					(ppn + 1) * pageSize, (byte) 0);
+		}
+
+		// a page read back from swap is clean as long as its slot is kept
+		entry.ppn = ppn;
+		entry.used = false;
+		entry.dirty = false;
+		entry.valid = true;
+
+		return ppn;
+	}
+
+	/**
+	 * Pin a page as <tt>pinPage()</tt> does, but when every frame is pinned,
+	 * wait for one to be unpinned and try again rather than fail. Frames are
+	 * pinned only while a page is transferred, so this does not last.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the physical page number.
+	 */
+	protected int waitForPage(int vpn) {
+		int ppn;
+		while ((ppn = pinPage(vpn)) == -1) {
+			Lib.debug(dbgVM, "\twaiting for memory for page " + vpn);
+
+			VMKernel.memoryLock.acquire();
+			VMKernel.waitForUnpinnedFrame();
+			VMKernel.memoryLock.release();
+		}
+
+		return ppn;
+	}
+
+	/**
+	 * Undo one <tt>pinPage()</tt>.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	protected void unpinPage(int vpn) {
+		VMKernel.memoryLock.acquire();
+		VMKernel.unpinFrame(pageTable[vpn].ppn);
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Return the frame holding a resident page. Called by the page-out thread
+	 * with <tt>VMKernel.memoryLock</tt> held, as are the other methods used to
+	 * evict pages.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the physical page number.
+	 */
+	int getPPN(int vpn) {
+		return pageTable[vpn].ppn;
+	}
+
+	/**
+	 * Return whether a resident page has been referenced since the last call,
+	 * and clear its used bit.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page was referenced.
+	 */
+	boolean testAndClearUsed(int vpn) {
+		TranslationEntry pte = pageTable[vpn];
+
+		int i = findTLBEntry(vpn);
+		if (i != -1) {
+			Processor processor = Machine.processor();
+			TranslationEntry entry = processor.readTLBEntry(i);
+			syncTLBEntry(entry);
+
+			if (entry.used) {
+				entry.used = false;
+				processor.writeTLBEntry(i, entry);
+			}
+		}
+
+		boolean used = pte.used;
+		pte.used = false;
+		return used;
+	}
+
+	/**
+	 * Return whether a resident page has been modified since it was filled.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page must be written to swap to evict it.
+	 */
+	boolean isDirty(int vpn) {
+		int i = findTLBEntry(vpn);
+		if (i != -1)
+			syncTLBEntry(Machine.processor().readTLBEntry(i));
+
+		return pageTable[vpn].dirty;
+	}
+
+	/**
+	 * Return whether a page can be paged out in the same cluster as a dirty
+	 * neighbor: it is resident, unpinned, dirty and not recently referenced.
+	 *
+	 * @param vpn the virtual page number, which may be out of range.
+	 * @return <tt>true</tt> if the page can join the cluster.
+	 */
+	boolean isClusterable(int vpn) {
+		if (vpn < 0 || vpn >= pageTable.length)
+			return false;
+
+		TranslationEntry pte = pageTable[vpn];
+		if (!pte.valid || VMKernel.isPinned(pte.ppn) || !isDirty(vpn))
+			return false;
+
+		int i = findTLBEntry(vpn);
+		return !pte.used
+				&& (i == -1 || !Machine.processor().readTLBEntry(i).used);
+	}
+
+	/**
+	 * Mark a resident page as no longer in memory, removing it from the TLB.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	void unmap(int vpn) {
+		int i = findTLBEntry(vpn);
+		if (i != -1) {
+			Processor processor = Machine.processor();
+			TranslationEntry entry = processor.readTLBEntry(i);
+			syncTLBEntry(entry);
+
+			entry.valid = false;
+			processor.writeTLBEntry(i, entry);
+		}
+
+		pageTable[vpn].valid = false;
+	}
+
+	/**
+	 * Record the swap slot holding a page, freeing the one that held an older
+	 * copy of it.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param slot the swap slot.
+	 */
+	void setSwapSlot(int vpn, int slot) {
+		if (swapSlots[vpn] != -1)
+			VMKernel.swap.free(swapSlots[vpn]);
+
+		swapSlots[vpn] = slot;
+	}
+
+	/**
+	 * Return the index of the TLB entry mapping a page of this process.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the index of the entry, or <tt>-1</tt> if the page is not in the
+	 * TLB.
+	 */
+	private int findTLBEntry(int vpn) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB())
+			return -1;
+
+		int ways = processor.getTLBWays();
+		int first = processor.getTLBSet(vpn, asid) * ways;
+
+		for (int i = first; i < first + ways; i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (entry.valid && entry.asid == asid && entry.vpn == vpn)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Service a page fault or TLB miss at the faulting address in
+	 * <tt>BadVAddr</tt>. The faulting instruction is restarted when the
+	 * process next runs.
+	 *
+	 * @return <tt>false</tt> if the address is not part of this process.
+	 */
+	private boolean handleFault() {
+		Processor processor = Machine.processor();
+
+		int vaddr = processor.readRegister(Processor.regBadVAddr);
+		int vpn = Processor.pageFromAddress(vaddr);
+
+		if (vaddr < 0 || !isValidPage(vpn)) {
+			Lib.debug(dbgVM, "\tbad address 0x" + Lib.toHexString(vaddr));
+			return false;
+		}
+
+		// every frame being pinned is no reason to kill the process
+		waitForPage(vpn);
+
+		if (processor.hasTLB())
+			loadTLBEntry(vpn);
+
+		unpinPage(vpn);
+
+		return true;
+	}
+
+	/**
+	 * Put a page table entry in the TLB, in a free way of its set if there is
+	 * one and in a random way otherwise. The used and dirty bits of the entry
+	 * that is replaced are copied back to its page table.
+	 *
+	 * @param vpn the virtual page number.
+	 */
+	private void loadTLBEntry(int vpn) {
+		Processor processor = Machine.processor();
+
+		int ways = processor.getTLBWays();
+		int first = processor.getTLBSet(vpn, asid) * ways;
+
+		int victim = first + Lib.random(ways);
+		for (int i = first; i < first + ways; i++) {
+			if (!processor.readTLBEntry(i).valid) {
+				victim = i;
+				break;
+			}
+		}
+
+		syncTLBEntry(processor.readTLBEntry(victim));
+
+		TranslationEntry entry = new TranslationEntry(pageTable[vpn]);
+		entry.asid = asid;
+		processor.writeTLBEntry(victim, entry);
+	}
+
+	/**
+	 * Copy the used and dirty bits that the processor has set in a TLB entry
+	 * back to the page table of the process that owns it.
+	 *
+	 * @param entry the TLB entry.
+	 */
+	private static void syncTLBEntry(TranslationEntry entry) {
+		if (!entry.valid)
+			return;
+
+		VMProcess owner = VMKernel.getASIDOwner(entry.asid);
+		if (owner == null)
+			return;
+
+		TranslationEntry pte = owner.pageTable[entry.vpn];
+		pte.used |= entry.used;
+		pte.dirty |= entry.dirty;
 	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
 	 * <tt>Processor.exceptionZZZ</tt> constants.
-	 * 
+	 *
 	 * @param cause the user exception that occurred.
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionPageFault:
+		case Processor.exceptionTLBMiss:
+			if (!handleFault())
+				handleExit(-1);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/** The address space identifier tagging this process's TLB entries. */
+	protected int asid = -1;
+
+	/**
+	 * The COFF section each virtual page is loaded from, or <tt>null</tt> for
+	 * pages that start out zero-filled.
+	 */
+	protected CoffSection[] pageSections;
+
+	/**
+	 * The swap slot holding a copy of each virtual page, or <tt>-1</tt> if the
+	 * page has never been paged out. A page keeps its slot when it is read
+	 * back, so that it can be dropped again without a write while it is
+	 * clean.
+	 */
+	protected int[] swapSlots;
+
+	/**
+	 * Which virtual pages have been unmapped by the page-out thread but not
+	 * yet written to swap. Protected by <tt>VMKernel.memoryLock</tt>.
+	 */
+	boolean[] pagingOut;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
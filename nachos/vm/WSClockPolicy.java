@@ -0,0 +1,86 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock replacement policy. Like the clock, a hand sweeps over the
+ * frames, but each frame also remembers when its page was last seen to be
+ * referenced. A page not referenced for longer than the working set window,
+ * <tt>VMKernel.workingSetWindow</tt> ticks, is no longer in its process's
+ * working set. The first such page that is clean is the victim, since it can
+ * be dropped without a write. Failing that, the first old dirty page is
+ * chosen, and failing that, the first unreferenced page.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+		resident = new boolean[numFrames];
+		lastUse = new long[numFrames];
+
+		window = Config.getInteger("VMKernel.workingSetWindow", 10000);
+		Lib.assertTrue(window > 0);
+	}
+
+	public void pageLoaded(int ppn) {
+		resident[ppn] = true;
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public void pageEvicted(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public void pageFreed(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int chooseVictim() {
+		long time = Machine.timer().getTime();
+		int oldDirty = -1, young = -1;
+
+		for (int scanned = 0; scanned < 2 * numFrames; scanned++) {
+			// after a full sweep, settle for the best page seen
+			if (scanned == numFrames && (oldDirty != -1 || young != -1))
+				break;
+
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (!resident[ppn] || VMKernel.isPinned(ppn))
+				continue;
+
+			if (VMKernel.testAndClearUsed(ppn)) {
+				lastUse[ppn] = time;
+				continue;
+			}
+
+			if (time - lastUse[ppn] > window) {
+				if (!VMKernel.isDirty(ppn))
+					return ppn;
+				if (oldDirty == -1)
+					oldDirty = ppn;
+			}
+			else if (young == -1) {
+				young = ppn;
+			}
+		}
+
+		return (oldDirty != -1) ? oldDirty : young;
+	}
+
+	private int numFrames;
+
+	/** Which frames hold a page. */
+	private boolean[] resident;
+
+	/** When the page in each frame was last seen to be referenced. */
+	private long[] lastUse;
+
+	/** The working set window, in ticks. */
+	private int window;
+
+	private int hand = 0;
+}